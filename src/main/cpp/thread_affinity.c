@@ -0,0 +1,99 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+/* Native part of edu.cmu.pocketsphinx.ThreadAffinity */
+
+#ifndef _GNU_SOURCE
+#define _GNU_SOURCE
+#endif
+
+#include <jni.h>
+#include <sched.h>
+#include <stdio.h>
+#include <unistd.h>
+
+#define MAX_CPUS 64
+
+static long
+cpu_max_freq(int cpu)
+{
+    char path[128];
+    FILE *fp;
+    long freq = -1;
+
+    snprintf(path, sizeof(path),
+             "/sys/devices/system/cpu/cpu%d/cpufreq/cpuinfo_max_freq", cpu);
+    if ((fp = fopen(path, "r")) == NULL)
+        return -1;
+    if (fscanf(fp, "%ld", &freq) != 1)
+        freq = -1;
+    fclose(fp);
+    return freq;
+}
+
+JNIEXPORT jint JNICALL
+Java_edu_cmu_pocketsphinx_ThreadAffinity_bindToPerformanceCores(JNIEnv *env,
+                                                                jclass cls)
+{
+    long freq[MAX_CPUS];
+    long min_freq = -1;
+    int ncpu, cpu, count;
+    cpu_set_t set;
+
+    ncpu = sysconf(_SC_NPROCESSORS_CONF);
+    if (ncpu > MAX_CPUS)
+        ncpu = MAX_CPUS;
+
+    for (cpu = 0; cpu < ncpu; ++cpu) {
+        freq[cpu] = cpu_max_freq(cpu);
+        if (freq[cpu] > 0 && (min_freq < 0 || freq[cpu] < min_freq))
+            min_freq = freq[cpu];
+    }
+    if (min_freq <= 0)
+        return 0;
+
+    /* Every cluster but the slowest one, so both the big and the prime
+     * cores are used on tri-cluster chips with a single prime core */
+    CPU_ZERO(&set);
+    count = 0;
+    for (cpu = 0; cpu < ncpu; ++cpu) {
+        if (freq[cpu] > min_freq) {
+            CPU_SET(cpu, &set);
+            ++count;
+        }
+    }
+    if (count == 0)
+        return 0;
+
+    /* Pid 0 is the calling thread */
+    if (sched_setaffinity(0, sizeof(set), &set) < 0)
+        return -1;
+    return count;
+}
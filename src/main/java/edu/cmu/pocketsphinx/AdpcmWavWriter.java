@@ -0,0 +1,232 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes 16-bit mono audio to a WAV file with IMA ADPCM compression, which
+ * takes 4 bits per sample. Audio is encoded in blocks of
+ * {@value #SAMPLES_PER_BLOCK} samples, the last block is padded with silence
+ * and the real number of samples is stored in the fact chunk.
+ */
+class AdpcmWavWriter {
+
+    static final int BLOCK_ALIGN = 256;
+    static final int SAMPLES_PER_BLOCK = (BLOCK_ALIGN - 4) * 2 + 1;
+
+    private static final int HEADER_SIZE = 60;
+    private static final int FORMAT_IMA_ADPCM = 0x11;
+
+    private static final int[] INDEX_TABLE = {
+        -1, -1, -1, -1, 2, 4, 6, 8,
+        -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    private static final int[] STEP_TABLE = {
+        7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+        19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+        50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+        130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+        337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+        876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+        2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+        5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+        15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    private final File file;
+    private final int sampleRate;
+    private final OutputStream output;
+
+    private final short[] samples = new short[SAMPLES_PER_BLOCK];
+    private final byte[] block = new byte[BLOCK_ALIGN];
+    private int nsamples;
+    private int index;
+    private long totalSamples;
+    private long dataSize;
+
+    AdpcmWavWriter(File file, int sampleRate) throws IOException {
+        this.file = file;
+        this.sampleRate = sampleRate;
+        output = new BufferedOutputStream(new FileOutputStream(file));
+        output.write(header(0, 0));
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the size of the file written so far.
+     */
+    long getSize() {
+        return HEADER_SIZE + dataSize;
+    }
+
+    void write(short[] data, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            samples[nsamples++] = data[i];
+            if (nsamples == SAMPLES_PER_BLOCK)
+                writeBlock();
+        }
+        totalSamples += length;
+    }
+
+    /**
+     * Flushes the last block and updates the header with the final sizes.
+     */
+    void close() throws IOException {
+        if (nsamples > 0) {
+            while (nsamples < SAMPLES_PER_BLOCK)
+                samples[nsamples++] = 0;
+            writeBlock();
+        }
+        output.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.write(header(totalSamples, dataSize));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Closes the file after a write error and removes it, its header does not
+     * describe the data.
+     */
+    void abort() {
+        try {
+            output.close();
+        } catch (IOException e) {
+            // The file is removed anyway
+        }
+        file.delete();
+    }
+
+    private void writeBlock() throws IOException {
+        int predictor = samples[0];
+        block[0] = (byte) predictor;
+        block[1] = (byte) (predictor >> 8);
+        block[2] = (byte) index;
+        block[3] = 0;
+
+        for (int i = 1; i < SAMPLES_PER_BLOCK; i++) {
+            int step = STEP_TABLE[index];
+            int diff = samples[i] - predictor;
+            int code = 0;
+            if (diff < 0) {
+                code = 8;
+                diff = -diff;
+            }
+            int delta = step >> 3;
+            if (diff >= step) {
+                code |= 4;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                code |= 2;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                code |= 1;
+                delta += step;
+            }
+
+            predictor += (code & 8) != 0 ? -delta : delta;
+            predictor = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, predictor));
+            index = Math.max(0, Math.min(STEP_TABLE.length - 1,
+                    index + INDEX_TABLE[code]));
+
+            // Two samples per byte, the earlier one in the low nibble
+            int pos = 4 + (i - 1) / 2;
+            if ((i & 1) != 0)
+                block[pos] = (byte) code;
+            else
+                block[pos] |= (byte) (code << 4);
+        }
+
+        output.write(block);
+        dataSize += BLOCK_ALIGN;
+        nsamples = 0;
+    }
+
+    private byte[] header(long totalSamples, long dataSize) {
+        byte[] header = new byte[HEADER_SIZE];
+        int pos = 0;
+        pos = putTag(header, pos, "RIFF");
+        pos = putInt(header, pos, (int) (HEADER_SIZE - 8 + dataSize));
+        pos = putTag(header, pos, "WAVE");
+        pos = putTag(header, pos, "fmt ");
+        pos = putInt(header, pos, 20);
+        pos = putShort(header, pos, FORMAT_IMA_ADPCM);
+        pos = putShort(header, pos, 1);
+        pos = putInt(header, pos, sampleRate);
+        pos = putInt(header, pos, sampleRate * BLOCK_ALIGN / SAMPLES_PER_BLOCK);
+        pos = putShort(header, pos, BLOCK_ALIGN);
+        pos = putShort(header, pos, 4);
+        pos = putShort(header, pos, 2);
+        pos = putShort(header, pos, SAMPLES_PER_BLOCK);
+        pos = putTag(header, pos, "fact");
+        pos = putInt(header, pos, 4);
+        pos = putInt(header, pos, (int) totalSamples);
+        pos = putTag(header, pos, "data");
+        putInt(header, pos, (int) dataSize);
+        return header;
+    }
+
+    private static int putTag(byte[] buffer, int pos, String tag) {
+        for (int i = 0; i < 4; i++)
+            buffer[pos + i] = (byte) tag.charAt(i);
+        return pos + 4;
+    }
+
+    private static int putShort(byte[] buffer, int pos, int value) {
+        buffer[pos] = (byte) value;
+        buffer[pos + 1] = (byte) (value >> 8);
+        return pos + 2;
+    }
+
+    private static int putInt(byte[] buffer, int pos, int value) {
+        pos = putShort(buffer, pos, value);
+        return putShort(buffer, pos, value >> 16);
+    }
+}
@@ -0,0 +1,511 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder.AudioSource;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Owns the single {@link AudioRecord} of the process and shares the captured
+ * audio among several recognizers, for example a keyword spotter and a
+ * dictation recognizer with separate decoders. Create recognizers with
+ * {@link SpeechRecognizerSetup#getRecognizer(AudioCaptureHub)}.
+ * 
+ * Every subscriber has its own bounded queue. When a subscriber does not keep
+ * up the oldest chunks in its queue are dropped, the capture and the other
+ * subscribers are not affected. The microphone is recording while at least one
+ * subscriber is listening. The capture thread runs with the urgent audio
+ * priority.
+ */
+public class AudioCaptureHub {
+
+    protected static final String TAG = AudioCaptureHub.class.getSimpleName();
+
+    private final static float BUFFER_SIZE_SECONDS = 0.4f;
+    private final static int DEFAULT_QUEUE_SIZE = 8;
+
+    /** Wakes up the subscriber blocked in read */
+    private static final short[] WAKEUP = new short[0];
+    /** Ends the stream of the finishing subscriber */
+    private static final short[] END = new short[0];
+
+    private final int sampleRate;
+    private final int bufferSize;
+    private final AudioRecord recorder;
+    private final ThreadFactory threadFactory;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    private int activeCount;
+    private Thread captureThread;
+    private volatile boolean stopping;
+    private boolean released;
+
+    /**
+     * Creates capture hub. Hub holds the AudioRecord object, so you need to
+     * call {@link #release} in order to properly finalize it.
+     * 
+     * @param sampleRate
+     *            sample rate, must match the sample rate of the recognizers
+     * @throws IOException
+     *             if audio recorder can not be created
+     */
+    public AudioCaptureHub(int sampleRate) throws IOException {
+        this(sampleRate, null);
+    }
+
+    /**
+     * Creates capture hub which creates the capture thread with the given
+     * factory, for example to name it or to pin it to specific cores. The
+     * thread priority is set by the hub when the thread starts.
+     * 
+     * @param sampleRate
+     *            sample rate, must match the sample rate of the recognizers
+     * @param threadFactory
+     *            factory for the capture thread or null for the default
+     * @throws IOException
+     *             if audio recorder can not be created
+     */
+    public AudioCaptureHub(int sampleRate, ThreadFactory threadFactory)
+            throws IOException {
+        this.sampleRate = sampleRate;
+        this.threadFactory = null != threadFactory ? threadFactory : new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, TAG);
+            }
+        };
+        bufferSize = Math.round(sampleRate * BUFFER_SIZE_SECONDS);
+        recorder = new AudioRecord(
+                AudioSource.VOICE_RECOGNITION, sampleRate,
+                AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT, bufferSize * 2);
+
+        if (recorder.getState() == AudioRecord.STATE_UNINITIALIZED) {
+            recorder.release();
+            throw new IOException(
+                    "Failed to initialize recorder. Microphone might be already in use.");
+        }
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Adds subscriber with the default queue size of
+     * {@value #DEFAULT_QUEUE_SIZE} chunks.
+     */
+    public Subscription subscribe() {
+        return subscribe(DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Adds subscriber.
+     * 
+     * @param queueSize
+     *            number of chunks the subscriber can lag behind before the
+     *            oldest ones are dropped
+     */
+    public Subscription subscribe(int queueSize) {
+        Subscription subscription = new Subscription(queueSize);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Returns current subscribers to monitor their lag.
+     */
+    public List<Subscription> getSubscriptions() {
+        return Collections.unmodifiableList(new ArrayList<Subscription>(subscriptions));
+    }
+
+    /**
+     * Stops the capture and releases the recorder. Streams of the listening
+     * subscribers end.
+     */
+    public synchronized void release() {
+        released = true;
+        activeCount = 0;
+        stopCapture();
+        recorder.release();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.active) {
+                subscription.active = false;
+                subscription.end();
+            }
+        }
+    }
+
+    private synchronized void activate(Subscription subscription) throws IOException {
+        if (released)
+            throw new IOException("Capture hub is released");
+        if (subscription.active)
+            return;
+
+        // The capture loop ends on a read error or when the recording is
+        // stopped to finish the last subscriber, start it again then
+        if (null == captureThread || !captureThread.isAlive() || stopping) {
+            stopCapture();
+            // Subscribers of the failed capture are not listening anymore
+            for (Subscription other : subscriptions) {
+                if (other.active && other.failed) {
+                    other.active = false;
+                    activeCount--;
+                }
+            }
+            startCapture();
+        }
+        subscription.active = true;
+        activeCount++;
+    }
+
+    private synchronized void deactivate(Subscription subscription) {
+        if (!subscription.active)
+            return;
+        subscription.active = false;
+        if (--activeCount == 0)
+            stopCapture();
+    }
+
+    /**
+     * Makes the subscriber's stream end after the audio captured so far. If
+     * it is the only subscriber the recording is stopped, so the pending read
+     * returns right away with the partial buffer. Otherwise the stream ends
+     * after the chunk being read.
+     */
+    private synchronized void finish(Subscription subscription) {
+        if (!subscription.active || null == captureThread
+                || !captureThread.isAlive()) {
+            subscription.end();
+            return;
+        }
+
+        subscription.finishing = true;
+        if (activeCount == 1) {
+            stopping = true;
+            recorder.stop();
+        }
+    }
+
+    private void startCapture() throws IOException {
+        stopping = false;
+        recorder.startRecording();
+        if (recorder.getRecordingState() == AudioRecord.RECORDSTATE_STOPPED) {
+            recorder.stop();
+            throw new IOException(
+                    "Failed to start recording. Microphone might be already in use.");
+        }
+        captureThread = threadFactory.newThread(new CaptureLoop());
+        captureThread.start();
+    }
+
+    /**
+     * Stops the capture thread. Called with the lock held, so the recording
+     * can not be restarted before the thread exits. The capture thread itself
+     * never takes the lock.
+     */
+    private synchronized void stopCapture() {
+        Thread thread = captureThread;
+        captureThread = null;
+        if (null == thread)
+            return;
+
+        thread.interrupt();
+        // Unblocks the pending read
+        recorder.stop();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            // Restore the interrupted status.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class CaptureLoop implements Runnable {
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            try {
+                capture();
+            } finally {
+                for (Subscription subscription : subscriptions)
+                    if (subscription.finishing)
+                        subscription.end();
+            }
+        }
+
+        private void capture() {
+            Thread thread = Thread.currentThread();
+
+            // Skip the first buffer, usually zeroes
+            short[] chunk = new short[bufferSize];
+            recorder.read(chunk, 0, chunk.length);
+            long lastRead = System.nanoTime();
+
+            while (!Thread.interrupted() && !stopping) {
+                chunk = new short[bufferSize];
+                int nread = recorder.read(chunk, 0, chunk.length);
+                // The read returns early once the recording is stopped
+                boolean stopped = stopping || thread.isInterrupted();
+
+                long now = System.nanoTime();
+                if (nread > 0 && !stopped) {
+                    long expected = nread * 1000000000L / sampleRate;
+                    for (Subscription subscription : subscriptions)
+                        subscription.addCaptureInterval(now - lastRead, expected);
+                }
+                lastRead = now;
+
+                if (nread < 0 && !stopped) {
+                    Log.e(TAG, format("Failed to read audio: %d", nread));
+                    for (Subscription subscription : subscriptions)
+                        subscription.fail();
+                    break;
+                }
+
+                if (nread > 0) {
+                    if (nread < chunk.length)
+                        chunk = Arrays.copyOf(chunk, nread);
+                    // Chunks are shared, subscribers copy the data out
+                    for (Subscription subscription : subscriptions)
+                        subscription.offer(chunk);
+                }
+
+                for (Subscription subscription : subscriptions)
+                    if (subscription.finishing)
+                        subscription.end();
+                if (stopped)
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Audio stream of a single subscriber.
+     */
+    public final class Subscription implements AudioInput {
+
+        private final BlockingQueue<short[]> queue;
+        private final AtomicLong queuedSamples = new AtomicLong();
+        private final AtomicLong droppedChunks = new AtomicLong();
+        private volatile RecognizerMetrics metrics;
+        private volatile SessionAudioRecorder recorder;
+        private volatile boolean active;
+        private volatile boolean failed;
+        private volatile boolean finishing;
+        private volatile boolean ended;
+
+        private short[] current;
+        private int position;
+
+        private Subscription(int queueSize) {
+            queue = new ArrayBlockingQueue<short[]>(queueSize);
+        }
+
+        /**
+         * Returns the amount of audio waiting in the queue.
+         */
+        public long getLagMillis() {
+            return queuedSamples.get() * 1000 / sampleRate;
+        }
+
+        /**
+         * Returns the number of chunks dropped because the queue was full.
+         */
+        public long getDroppedChunks() {
+            return droppedChunks.get();
+        }
+
+        @Override
+        public void start() throws IOException {
+            clear();
+            failed = false;
+            activate(this);
+        }
+
+        @Override
+        public int read(short[] buffer, int length) {
+            if (null == current) {
+                try {
+                    current = queue.take();
+                } catch (InterruptedException e) {
+                    // Restore the interrupted status.
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+                position = 0;
+                if (END == current) {
+                    current = null;
+                    return END_OF_STREAM;
+                }
+                if (WAKEUP == current) {
+                    current = null;
+                    if (!failed)
+                        return 0;
+                    // Lets the hub stop the recording, the next start
+                    // restarts it
+                    stop();
+                    return -1;
+                }
+                queuedSamples.addAndGet(-current.length);
+                updateLag();
+            }
+
+            int nread = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, 0, nread);
+            position += nread;
+            if (position == current.length)
+                current = null;
+            return nread;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.nanoTime() / 1000000;
+        }
+
+        @Override
+        public void finish() {
+            AudioCaptureHub.this.finish(this);
+        }
+
+        @Override
+        public void stop() {
+            deactivate(this);
+            clear();
+        }
+
+        @Override
+        public void release() {
+            stop();
+            subscriptions.remove(this);
+        }
+
+        private void offer(short[] chunk) {
+            if (!active || ended)
+                return;
+            SessionAudioRecorder target = recorder;
+            if (null != target && !target.write(chunk, chunk.length)) {
+                RecognizerMetrics targetMetrics = metrics;
+                if (null != targetMetrics)
+                    targetMetrics.addDroppedAudioChunk();
+            }
+            queuedSamples.addAndGet(chunk.length);
+            put(chunk);
+            updateLag();
+        }
+
+        /**
+         * Ends the stream after the queued audio.
+         */
+        private void end() {
+            finishing = false;
+            ended = true;
+            put(END);
+        }
+
+        private void put(short[] chunk) {
+            while (!queue.offer(chunk)) {
+                short[] oldest = queue.poll();
+                if (null != oldest && WAKEUP != oldest && END != oldest) {
+                    queuedSamples.addAndGet(-oldest.length);
+                    droppedChunks.incrementAndGet();
+                    RecognizerMetrics target = metrics;
+                    if (null != target)
+                        target.addDroppedCaptureChunk();
+                }
+            }
+        }
+
+        void setMetrics(RecognizerMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        /**
+         * Records the chunks as they are captured, before the queue, so the
+         * recording is complete even if the subscriber drops chunks.
+         */
+        void setRecorder(SessionAudioRecorder recorder) {
+            this.recorder = recorder;
+        }
+
+        private void addCaptureInterval(long intervalNanos, long expectedNanos) {
+            RecognizerMetrics target = metrics;
+            if (active && null != target)
+                target.addCaptureInterval(intervalNanos, expectedNanos);
+        }
+
+        private void updateLag() {
+            RecognizerMetrics target = metrics;
+            if (null != target)
+                target.setCaptureLag(getLagMillis());
+        }
+
+        private void fail() {
+            failed = true;
+            queue.clear();
+            queuedSamples.set(0);
+            queue.offer(WAKEUP);
+        }
+
+        private void clear() {
+            queue.clear();
+            queuedSamples.set(0);
+            current = null;
+            finishing = false;
+            ended = false;
+        }
+
+        @Override
+        public String toString() {
+            return format(Locale.US, "%s lag %d ms, dropped %d",
+                    super.toString(), getLagMillis(), getDroppedChunks());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import java.io.IOException;
+
+/**
+ * Source of audio for the recognition loop.
+ */
+interface AudioInput {
+
+    /**
+     * Starts delivering audio.
+     * 
+     * @throws IOException
+     *             if the audio can not be captured
+     */
+    void start() throws IOException;
+
+    /**
+     * Returned by {@link #read} when the stream is finished.
+     */
+    int END_OF_STREAM = -2;
+
+    /**
+     * Reads audio, blocks until some data is available.
+     * 
+     * @return number of samples read, 0 if interrupted,
+     *         {@link #END_OF_STREAM} after {@link #finish} once all audio
+     *         is read and other negative value on error
+     */
+    int read(short[] buffer, int length);
+
+    /**
+     * Returns the current time of the input clock in milliseconds, used to
+     * timestamp the session trace.
+     */
+    long currentTimeMillis();
+
+    /**
+     * Ends the stream: the audio captured up to now is still delivered, then
+     * {@link #read} returns {@link #END_OF_STREAM}. The pending read returns
+     * promptly instead of waiting for the full buffer. Can be called from any
+     * thread.
+     */
+    void finish();
+
+    /**
+     * Stops delivering audio, the input can be started again.
+     */
+    void stop();
+
+    /**
+     * Releases the resources, the input can not be used afterwards.
+     */
+    void release();
+}
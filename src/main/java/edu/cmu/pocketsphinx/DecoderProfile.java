@@ -0,0 +1,89 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+/**
+ * Presets of the decoder parameters which trade accuracy for speed. Profiles
+ * are ordered from the most accurate one to the fastest one.
+ * 
+ * @see SpeechRecognizerSetup#setProfile
+ * @see DeviceCalibration
+ */
+public enum DecoderProfile {
+
+    /** Decoder defaults */
+    ACCURATE(1e-48, 7e-29, 1e-48, 1, 4, 30000, -1),
+    BALANCED(1e-40, 1e-24, 1e-40, 1, 3, 10000, 20),
+    FAST(1e-30, 1e-20, 1e-30, 2, 2, 4000, 10),
+    FASTEST(1e-20, 1e-15, 1e-20, 3, 2, 2000, 5);
+
+    private final double beam;
+    private final double wordBeam;
+    private final double phoneBeam;
+    private final int downsampling;
+    private final int topn;
+    private final int maxHmmPerFrame;
+    private final int maxWordsPerFrame;
+
+    private DecoderProfile(double beam, double wordBeam, double phoneBeam,
+            int downsampling, int topn, int maxHmmPerFrame, int maxWordsPerFrame) {
+        this.beam = beam;
+        this.wordBeam = wordBeam;
+        this.phoneBeam = phoneBeam;
+        this.downsampling = downsampling;
+        this.topn = topn;
+        this.maxHmmPerFrame = maxHmmPerFrame;
+        this.maxWordsPerFrame = maxWordsPerFrame;
+    }
+
+    /**
+     * Sets profile parameters in the configuration.
+     */
+    public void apply(Config config) {
+        config.setFloat("-beam", beam);
+        config.setFloat("-wbeam", wordBeam);
+        config.setFloat("-pbeam", phoneBeam);
+        config.setInt("-ds", downsampling);
+        config.setInt("-topn", topn);
+        config.setInt("-maxhmmpf", maxHmmPerFrame);
+        config.setInt("-maxwpf", maxWordsPerFrame);
+    }
+
+    void apply(SpeechRecognizerSetup setup) {
+        setup.setFloat("-beam", beam)
+                .setFloat("-wbeam", wordBeam)
+                .setFloat("-pbeam", phoneBeam)
+                .setInteger("-ds", downsampling)
+                .setInteger("-topn", topn)
+                .setInteger("-maxhmmpf", maxHmmPerFrame)
+                .setInteger("-maxwpf", maxWordsPerFrame);
+    }
+}
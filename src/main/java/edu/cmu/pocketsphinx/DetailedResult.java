@@ -0,0 +1,95 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Additional output of the finished utterance: N-best hypotheses and the word
+ * lattice. Both are taken from the decoder on the recognizer thread when the
+ * utterance ends, the lattice is compressed in background and the result is
+ * delivered after the final result, see {@link SpeechRecognizer#setNBestSize} and
+ * {@link SpeechRecognizer#setLatticeEnabled}.
+ */
+public class DetailedResult {
+
+    /**
+     * Single entry of the N-best list.
+     */
+    public static class Alternative {
+        private final String hypstr;
+        private final int score;
+
+        public Alternative(String hypstr, int score) {
+            this.hypstr = hypstr;
+            this.score = score;
+        }
+
+        public String getHypstr() {
+            return hypstr;
+        }
+
+        public int getScore() {
+            return score;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%d)", hypstr, score);
+        }
+    }
+
+    private final List<Alternative> nbest;
+    private final byte[] lattice;
+
+    public DetailedResult(List<Alternative> nbest, byte[] lattice) {
+        this.nbest = Collections.unmodifiableList(nbest);
+        this.lattice = lattice;
+    }
+
+    /**
+     * Returns N-best hypotheses ordered by score, empty if N-best output is
+     * disabled or the search does not support it.
+     */
+    public List<Alternative> getNBest() {
+        return nbest;
+    }
+
+    /**
+     * Returns the word lattice in Sphinx lattice format compressed with gzip
+     * or null if lattice output is disabled or the search does not produce
+     * lattices (e.g. keyword spotting).
+     */
+    public byte[] getLattice() {
+        return lattice;
+    }
+}
@@ -0,0 +1,224 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.Properties;
+
+import android.util.Log;
+
+/**
+ * Chooses the {@link DecoderProfile} for the device. Calibration decodes a
+ * fixture recording with every profile starting from the most accurate one
+ * and picks the first profile which decodes faster than the target real-time
+ * factor. The result is stored in a small properties file, so it is measured
+ * only once per device.
+ * <p>
+ * The library does not ship a fixture, it must match the acoustic model and
+ * the sample rate of the application. A few seconds of typical speech for the
+ * application recorded as raw 16-bit little-endian audio are enough. Without
+ * a language model and a search in the configuration the fixture is decoded
+ * with a phone loop, which is close to the cost of a large vocabulary search.
+ * 
+ * @see SpeechRecognizerSetup#setAutoTuning
+ */
+public class DeviceCalibration {
+
+    protected static final String TAG = DeviceCalibration.class.getSimpleName();
+
+    private static final String SEARCH_NAME = "calibration";
+    private static final float CHUNK_SECONDS = 0.4f;
+
+    private static final String KEY_PROFILE = "profile";
+    private static final String KEY_RTF = "rtf";
+    private static final String KEY_TARGET_RTF = "target_rtf";
+
+    private final DecoderProfile profile;
+    private final float rtf;
+    private final float targetRtf;
+
+    public DeviceCalibration(DecoderProfile profile, float rtf, float targetRtf) {
+        this.profile = profile;
+        this.rtf = rtf;
+        this.targetRtf = targetRtf;
+    }
+
+    public DecoderProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Returns real-time factor measured with the chosen profile.
+     */
+    public float getRealTimeFactor() {
+        return rtf;
+    }
+
+    public float getTargetRealTimeFactor() {
+        return targetRtf;
+    }
+
+    /**
+     * Loads previously saved calibration.
+     * 
+     * @return calibration or null if the file does not exist or is invalid
+     */
+    public static DeviceCalibration load(File file) {
+        if (!file.exists())
+            return null;
+
+        Properties properties = new Properties();
+        try {
+            InputStream source = new FileInputStream(file);
+            try {
+                properties.load(source);
+            } finally {
+                source.close();
+            }
+            return new DeviceCalibration(
+                    DecoderProfile.valueOf(properties.getProperty(KEY_PROFILE)),
+                    Float.parseFloat(properties.getProperty(KEY_RTF)),
+                    Float.parseFloat(properties.getProperty(KEY_TARGET_RTF)));
+        } catch (IOException e) {
+            Log.w(TAG, format("Failed to read calibration %s", file), e);
+        } catch (RuntimeException e) {
+            Log.w(TAG, format("Invalid calibration %s", file), e);
+        }
+        return null;
+    }
+
+    public void save(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_PROFILE, profile.name());
+        properties.setProperty(KEY_RTF, Float.toString(rtf));
+        properties.setProperty(KEY_TARGET_RTF, Float.toString(targetRtf));
+        OutputStream destination = new FileOutputStream(file);
+        try {
+            properties.store(destination, "Decoder calibration");
+        } finally {
+            destination.close();
+        }
+    }
+
+    /**
+     * Runs calibration. Every tried profile creates a new decoder, so this
+     * may take several seconds and must not be called on the main thread.
+     * The configuration is left with the parameters of the last tried
+     * profile.
+     * 
+     * @param config
+     *            decoder configuration with the acoustic model and dictionary
+     * @param fixture
+     *            raw 16-bit little-endian audio at the configured sample rate
+     * @param languageModel
+     *            N-gram model to decode the fixture with or null to use the
+     *            search defined by the configuration or a phone loop if the
+     *            configuration has none
+     * @param targetRtf
+     *            required real-time factor, for example 0.5 to decode twice
+     *            as fast as real time
+     * @throws IOException
+     *             if the fixture can not be read
+     */
+    public static DeviceCalibration calibrate(Config config, File fixture,
+            File languageModel, float targetRtf) throws IOException {
+        short[] audio = readRaw(fixture);
+        int sampleRate = (int) config.getFloat("-samprate");
+        float duration = (float) audio.length / sampleRate;
+        if (duration == 0)
+            throw new IOException(format("calibration fixture %s is empty", fixture));
+
+        DecoderProfile[] profiles = DecoderProfile.values();
+        for (int i = 0; i < profiles.length; i++) {
+            profiles[i].apply(config);
+            float rtf = measure(config, audio, sampleRate, languageModel) / duration;
+            Log.i(TAG, format(Locale.US, "Profile %s: RTF %.3f", profiles[i], rtf));
+            if (rtf <= targetRtf || i == profiles.length - 1)
+                return new DeviceCalibration(profiles[i], rtf, targetRtf);
+        }
+        throw new IllegalStateException("no decoder profiles");
+    }
+
+    private static float measure(Config config, short[] audio, int sampleRate,
+            File languageModel) {
+        Decoder decoder = new Decoder(config);
+        try {
+            if (null != languageModel) {
+                decoder.setLmFile(SEARCH_NAME, languageModel.getPath());
+                decoder.setSearch(SEARCH_NAME);
+            } else if (null == decoder.getSearch()) {
+                // No search in the configuration, decode with a phone loop
+                decoder.setAllphoneFile(SEARCH_NAME, null);
+                decoder.setSearch(SEARCH_NAME);
+            }
+
+            short[] chunk = new short[Math.round(sampleRate * CHUNK_SECONDS)];
+            long start = System.nanoTime();
+            decoder.startUtt();
+            for (int pos = 0; pos < audio.length; pos += chunk.length) {
+                int length = Math.min(chunk.length, audio.length - pos);
+                System.arraycopy(audio, pos, chunk, 0, length);
+                decoder.processRaw(chunk, length, false, false);
+            }
+            decoder.endUtt();
+            decoder.hyp();
+            return (System.nanoTime() - start) / 1e9f;
+        } finally {
+            decoder.delete();
+        }
+    }
+
+    private static short[] readRaw(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream source = new DataInputStream(new FileInputStream(file));
+        try {
+            source.readFully(bytes);
+        } finally {
+            source.close();
+        }
+
+        short[] samples = new short[bytes.length / 2];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+                .asShortBuffer().get(samples);
+        return samples;
+    }
+}
@@ -0,0 +1,61 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import java.util.List;
+
+/**
+ * Listener which receives recognized words incrementally. Register it with
+ * {@link SpeechRecognizer#addListener} like any other
+ * {@link RecognitionListener}.
+ *
+ * Words are reported in two groups. Committed words are a best-effort stable
+ * prefix: each of them is reported exactly once and never taken back, but the
+ * decoder may still revise them internally, so the final hypothesis passed to
+ * {@link RecognitionListener#onResult} can differ from the committed words.
+ * Use the final result when the exact transcription matters. Tentative words
+ * follow the committed ones and may still be revised by the decoder, they are
+ * reported only when they change.
+ */
+public interface IncrementalRecognitionListener extends RecognitionListener {
+
+    /**
+     * Called when words become stable. Only the newly committed words are
+     * passed, in order.
+     */
+    public void onWordsCommitted(List<WordSegment> words);
+
+    /**
+     * Called when the tentative tail of the current hypothesis changes. The
+     * whole tail is passed, it replaces the previous one.
+     */
+    public void onTentativeWords(List<WordSegment> words);
+}
@@ -0,0 +1,242 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Compares resident memory and load time of the decoder with memory mapped
+ * and with read model files, see
+ * {@link SpeechRecognizerSetup#setMemoryMappedModels(boolean)}.
+ * 
+ * Every round loads the decoder in both modes, the order alternates between
+ * rounds. After loading, one second of silence is decoded so that the mapped
+ * pages are touched as in real use. The search defined by the configuration
+ * is used for that, if there is none a phone loop search is added. The
+ * configuration only needs the acoustic model and the dictionary. Freed
+ * native memory is not always returned to the system, so run the benchmark in
+ * a fresh process and do not create other decoders meanwhile. Loading takes
+ * seconds, do not call it on the main thread.
+ */
+public class MemoryBenchmark {
+
+    protected static final String TAG = MemoryBenchmark.class.getSimpleName();
+
+    private static final String PROC_STATUS = "/proc/self/status";
+    private static final String SEARCH_NAME = "benchmark";
+
+    /**
+     * Average figures of one mode.
+     */
+    public static class Result {
+        private final boolean memoryMapped;
+        private long loadMillis;
+        private long nativeHeapBytes;
+        private long residentBytes;
+        private long residentFileBytes;
+        private long residentAnonBytes;
+
+        Result(boolean memoryMapped) {
+            this.memoryMapped = memoryMapped;
+        }
+
+        public boolean isMemoryMapped() {
+            return memoryMapped;
+        }
+
+        public long getLoadMillis() {
+            return loadMillis;
+        }
+
+        /**
+         * Returns growth of the native heap.
+         */
+        public long getNativeHeapBytes() {
+            return nativeHeapBytes;
+        }
+
+        /**
+         * Returns growth of the resident set of the process.
+         */
+        public long getResidentBytes() {
+            return residentBytes;
+        }
+
+        /**
+         * Returns growth of the resident file-backed pages, which are shared
+         * and reclaimable, or -1 if the kernel does not report them.
+         */
+        public long getResidentFileBytes() {
+            return residentFileBytes;
+        }
+
+        /**
+         * Returns growth of the resident anonymous pages, which are private,
+         * or -1 if the kernel does not report them.
+         */
+        public long getResidentAnonBytes() {
+            return residentAnonBytes;
+        }
+
+        @Override
+        public String toString() {
+            return format(Locale.US,
+                    "mmap %s: load %d ms, native heap %d KiB, RSS %d KiB"
+                            + " (file %d KiB, anon %d KiB)",
+                    memoryMapped ? "on" : "off", loadMillis,
+                    nativeHeapBytes / 1024, residentBytes / 1024,
+                    residentFileBytes / 1024, residentAnonBytes / 1024);
+        }
+    }
+
+    private MemoryBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark. The -mmap value of the configuration is restored
+     * when done.
+     * 
+     * @param config
+     *            decoder configuration with the model files
+     * @param rounds
+     *            number of loads in every mode
+     * @return results without and with memory mapping
+     * @throws IOException
+     *             if the memory usage of the process can not be read
+     */
+    public static List<Result> run(Config config, int rounds) throws IOException {
+        if (rounds < 1)
+            throw new IllegalArgumentException("rounds must be positive");
+
+        boolean mmap = config.getBoolean("-mmap");
+        Result[] results = { new Result(false), new Result(true) };
+        try {
+            // Bring the model files into the page cache first
+            config.setBoolean("-mmap", false);
+            new Decoder(config).delete();
+
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < results.length; i++)
+                    measure(config, results[(round + i) % results.length]);
+            }
+        } finally {
+            config.setBoolean("-mmap", mmap);
+        }
+
+        List<Result> list = new ArrayList<Result>();
+        for (Result result : results) {
+            result.loadMillis /= rounds;
+            result.nativeHeapBytes /= rounds;
+            result.residentBytes /= rounds;
+            result.residentFileBytes = result.residentFileBytes < 0
+                    ? -1 : result.residentFileBytes / rounds;
+            result.residentAnonBytes = result.residentAnonBytes < 0
+                    ? -1 : result.residentAnonBytes / rounds;
+            Log.i(TAG, result.toString());
+            list.add(result);
+        }
+        return list;
+    }
+
+    private static void measure(Config config, Result result) throws IOException {
+        config.setBoolean("-mmap", result.memoryMapped);
+
+        long heap = Debug.getNativeHeapAllocatedSize();
+        long rss = readStatus("VmRSS");
+        long rssFile = readStatus("RssFile");
+        long rssAnon = readStatus("RssAnon");
+        long start = System.nanoTime();
+        Decoder decoder = new Decoder(config);
+        try {
+            result.loadMillis += (System.nanoTime() - start) / 1000000;
+
+            decodeSilence(decoder, (int) config.getFloat("-samprate"));
+
+            result.nativeHeapBytes += Debug.getNativeHeapAllocatedSize() - heap;
+            result.residentBytes += readStatus("VmRSS") - rss;
+            if (rssFile < 0 || result.residentFileBytes < 0)
+                result.residentFileBytes = -1;
+            else
+                result.residentFileBytes += readStatus("RssFile") - rssFile;
+            if (rssAnon < 0 || result.residentAnonBytes < 0)
+                result.residentAnonBytes = -1;
+            else
+                result.residentAnonBytes += readStatus("RssAnon") - rssAnon;
+        } finally {
+            decoder.delete();
+        }
+    }
+
+    private static void decodeSilence(Decoder decoder, int sampleRate) {
+        try {
+            if (null == decoder.getSearch()) {
+                // Phone loop without a language model
+                decoder.setAllphoneFile(SEARCH_NAME, null);
+                decoder.setSearch(SEARCH_NAME);
+            }
+            short[] silence = new short[sampleRate];
+            decoder.startUtt();
+            decoder.processRaw(silence, silence.length, false, true);
+            decoder.endUtt();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to decode, mapped pages are not touched", e);
+        }
+    }
+
+    /**
+     * Reads a memory figure of the process in bytes, -1 if it is missing.
+     */
+    private static long readStatus(String key) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(PROC_STATUS));
+        try {
+            String line;
+            while (null != (line = reader.readLine())) {
+                if (!line.startsWith(key + ":"))
+                    continue;
+                String[] fields = line.substring(key.length() + 1).trim().split("\\s+");
+                return Long.parseLong(fields[0]) * 1024;
+            }
+            return -1;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Native memory held by the decoder of a {@link SpeechRecognizer}, broken
+ * down by component. The decoder lives in native memory which Java heap
+ * tools do not see.
+ * 
+ * The figures are estimates. They are measured as the growth of the native
+ * heap while the component is loaded, so allocations made by other threads
+ * at the same time are counted too. The decoder is loaded in one call, so
+ * the acoustic model part of it is estimated from the sizes of the model
+ * files and the rest is attributed to the dictionary. The dictionary figure
+ * also includes the searches defined in the configuration and the words
+ * added later. Searches added through {@link SpeechRecognizer#getDecoder()}
+ * directly are not accounted.
+ * 
+ * @see SpeechRecognizer#getMemoryFootprint()
+ */
+public class MemoryFootprint {
+
+    /** Binary model files which the decoder maps instead of reading. */
+    private static final String[] MAPPABLE_FILES = { "mdef", "sendump" };
+    private static final byte[] BINARY_MDEF_MAGIC = { 'B', 'M', 'D', 'F' };
+
+    private final long acousticModelBytes;
+    private final long dictionaryBytes;
+    private final long mappedBytes;
+    private final Map<String, Long> searchBytes;
+
+    MemoryFootprint(long acousticModelBytes, long dictionaryBytes,
+            long mappedBytes, Map<String, Long> searchBytes) {
+        this.acousticModelBytes = acousticModelBytes;
+        this.dictionaryBytes = dictionaryBytes;
+        this.mappedBytes = mappedBytes;
+        this.searchBytes = Collections.unmodifiableMap(
+                new LinkedHashMap<String, Long>(searchBytes));
+    }
+
+    /**
+     * Returns native heap used by the acoustic model.
+     */
+    public long getAcousticModelBytes() {
+        return acousticModelBytes;
+    }
+
+    /**
+     * Returns native heap used by the dictionary and the searches from the
+     * configuration.
+     */
+    public long getDictionaryBytes() {
+        return dictionaryBytes;
+    }
+
+    /**
+     * Returns size of the model files mapped into memory. Mapped pages are
+     * backed by the files, they are shared and can be reclaimed by the
+     * system, so they are not part of the native heap.
+     */
+    public long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * Returns native heap used by every search added to the recognizer.
+     */
+    public Map<String, Long> getSearchBytes() {
+        return searchBytes;
+    }
+
+    /**
+     * Returns native heap used by the decoder.
+     */
+    public long getTotalBytes() {
+        long total = acousticModelBytes + dictionaryBytes;
+        for (long bytes : searchBytes.values())
+            total += bytes;
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(format(Locale.US,
+                "native %d KiB: acoustic model %d KiB, dictionary %d KiB",
+                getTotalBytes() / 1024, acousticModelBytes / 1024,
+                dictionaryBytes / 1024));
+        for (Map.Entry<String, Long> entry : searchBytes.entrySet())
+            builder.append(format(Locale.US, ", search %s %d KiB",
+                    entry.getKey(), entry.getValue() / 1024));
+        builder.append(format(Locale.US, "; mapped %d KiB", mappedBytes / 1024));
+        return builder.toString();
+    }
+
+    /**
+     * Returns total size of the acoustic model files which are read into the
+     * heap, or which are mapped if mapped is true.
+     */
+    static long acousticModelFileBytes(Config config, boolean mapped) {
+        String hmm = config.getString("-hmm");
+        File[] files = null == hmm ? null : new File(hmm).listFiles();
+        if (null == files)
+            return 0;
+
+        boolean mmap = config.getBoolean("-mmap");
+        long total = 0;
+        for (File file : files) {
+            if (!file.isFile())
+                continue;
+            if (mapped == (mmap && isMappable(file)))
+                total += file.length();
+        }
+        return total;
+    }
+
+    private static boolean isMappable(File file) {
+        if (!Arrays.asList(MAPPABLE_FILES).contains(file.getName()))
+            return false;
+        if (!"mdef".equals(file.getName()))
+            return true;
+
+        // Only the binary model definition is mapped
+        byte[] magic = new byte[BINARY_MDEF_MAGIC.length];
+        try {
+            InputStream source = new FileInputStream(file);
+            try {
+                return source.read(magic) == magic.length
+                        && Arrays.equals(magic, BINARY_MDEF_MAGIC);
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
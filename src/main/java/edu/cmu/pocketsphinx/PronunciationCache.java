@@ -0,0 +1,149 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent cache of generated pronunciations. The cache is stored in the
+ * dictionary format, one word per line followed by its phones, so it can be
+ * inspected or used as a dictionary directly.
+ * 
+ * @see SpeechRecognizer#addWords(Collection, PronunciationCache,
+ *      PronunciationCache.Generator)
+ */
+public class PronunciationCache {
+
+    /**
+     * Generates pronunciation for a word which is missing in the cache, for
+     * example with a letter-to-sound model or rules.
+     */
+    public interface Generator {
+        /**
+         * @return space-separated phones or null if the word can not be
+         *         pronounced
+         */
+        public String generate(String word);
+    }
+
+    private final File file;
+    private final Map<String, String> pronunciations = new HashMap<String, String>();
+    private boolean modified;
+
+    /**
+     * Creates cache backed by the file. If the file exists its entries are
+     * loaded.
+     * 
+     * @throws IOException
+     *             if the file exists but can not be read
+     */
+    public PronunciationCache(File file) throws IOException {
+        this.file = file;
+        if (!file.exists())
+            return;
+
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while (null != (line = br.readLine())) {
+                line = line.trim();
+                int space = line.indexOf(' ');
+                if (space > 0)
+                    pronunciations.put(line.substring(0, space),
+                            line.substring(space + 1).trim());
+            }
+        } finally {
+            br.close();
+        }
+    }
+
+    public synchronized String get(String word) {
+        return pronunciations.get(word);
+    }
+
+    public synchronized void put(String word, String phones) {
+        if (!phones.equals(pronunciations.put(word, phones)))
+            modified = true;
+    }
+
+    /**
+     * Returns pronunciations for the words, generating and caching the
+     * missing ones. Words the generator can not pronounce are omitted.
+     */
+    public synchronized Map<String, String> resolve(Collection<String> words,
+            Generator generator) {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for (String word : words) {
+            String phones = pronunciations.get(word);
+            if (null == phones) {
+                phones = generator.generate(word);
+                if (null == phones)
+                    continue;
+                put(word, phones);
+            }
+            result.put(word, phones);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the cache to disk if it was modified. The file is replaced
+     * atomically so an interrupted save does not corrupt the cache.
+     */
+    public synchronized void save() throws IOException {
+        if (!modified)
+            return;
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(tmpFile), "UTF-8"));
+        for (Map.Entry<String, String> entry : pronunciations.entrySet())
+            pw.format("%s %s\n", entry.getKey(), entry.getValue());
+        pw.close();
+        if (pw.checkError())
+            throw new IOException("failed to write " + tmpFile);
+        if (!tmpFile.renameTo(file))
+            throw new IOException("failed to replace " + file);
+        modified = false;
+    }
+}
@@ -0,0 +1,181 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runtime counters of the recognizer. Values are updated from the recognizer
+ * threads and can be read from any thread.
+ * 
+ * Capture jitter is the deviation of the interval between two audio reads
+ * from the duration of the audio read, it grows when the capture thread is
+ * preempted. A decoding deadline is missed when a chunk takes longer to
+ * process than its duration, so the decoder falls behind real time. The
+ * capture lag is the audio waiting for the decoder in the capture queue, when
+ * the queue is full the oldest chunks are dropped and the decoder sees a gap.
+ */
+public class RecognizerMetrics {
+
+    private final AtomicLong droppedAudioChunks = new AtomicLong();
+
+    private final AtomicLong captureReads = new AtomicLong();
+    private final AtomicLong captureJitterNanos = new AtomicLong();
+    private final AtomicLong maxCaptureJitterNanos = new AtomicLong();
+    private final AtomicLong captureLagMillis = new AtomicLong();
+    private final AtomicLong maxCaptureLagMillis = new AtomicLong();
+    private final AtomicLong droppedCaptureChunks = new AtomicLong();
+
+    private final AtomicLong decodedChunks = new AtomicLong();
+    private final AtomicLong missedDeadlines = new AtomicLong();
+    private final AtomicLong maxDecodeNanos = new AtomicLong();
+
+    /**
+     * Returns the number of audio chunks which were not stored by the
+     * {@link SessionAudioRecorder} because its queue was full.
+     */
+    public long getDroppedAudioChunks() {
+        return droppedAudioChunks.get();
+    }
+
+    void addDroppedAudioChunk() {
+        droppedAudioChunks.incrementAndGet();
+    }
+
+    public long getCaptureReads() {
+        return captureReads.get();
+    }
+
+    public double getMeanCaptureJitterMillis() {
+        long reads = captureReads.get();
+        return reads == 0 ? 0 : captureJitterNanos.get() / 1e6 / reads;
+    }
+
+    public double getMaxCaptureJitterMillis() {
+        return maxCaptureJitterNanos.get() / 1e6;
+    }
+
+    /**
+     * Returns the amount of captured audio waiting for the decoder.
+     */
+    public long getCaptureLagMillis() {
+        return captureLagMillis.get();
+    }
+
+    public long getMaxCaptureLagMillis() {
+        return maxCaptureLagMillis.get();
+    }
+
+    /**
+     * Returns the number of captured chunks which were dropped because the
+     * decoder did not keep up.
+     */
+    public long getDroppedCaptureChunks() {
+        return droppedCaptureChunks.get();
+    }
+
+    public long getDecodedChunks() {
+        return decodedChunks.get();
+    }
+
+    /**
+     * Returns the number of chunks which took longer to decode than their
+     * duration.
+     */
+    public long getMissedDeadlines() {
+        return missedDeadlines.get();
+    }
+
+    public double getMaxDecodeMillis() {
+        return maxDecodeNanos.get() / 1e6;
+    }
+
+    void addCaptureInterval(long intervalNanos, long expectedNanos) {
+        long jitter = Math.abs(intervalNanos - expectedNanos);
+        captureReads.incrementAndGet();
+        captureJitterNanos.addAndGet(jitter);
+        updateMax(maxCaptureJitterNanos, jitter);
+    }
+
+    void setCaptureLag(long lagMillis) {
+        captureLagMillis.set(lagMillis);
+        updateMax(maxCaptureLagMillis, lagMillis);
+    }
+
+    void addDroppedCaptureChunk() {
+        droppedCaptureChunks.incrementAndGet();
+    }
+
+    void addDecodedChunk(long decodeNanos, long audioNanos) {
+        decodedChunks.incrementAndGet();
+        if (decodeNanos > audioNanos)
+            missedDeadlines.incrementAndGet();
+        updateMax(maxDecodeNanos, decodeNanos);
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()))
+            if (max.compareAndSet(current, value))
+                break;
+    }
+
+    /**
+     * Resets all counters to zero.
+     */
+    public void reset() {
+        droppedAudioChunks.set(0);
+        captureReads.set(0);
+        captureJitterNanos.set(0);
+        maxCaptureJitterNanos.set(0);
+        captureLagMillis.set(0);
+        maxCaptureLagMillis.set(0);
+        droppedCaptureChunks.set(0);
+        decodedChunks.set(0);
+        missedDeadlines.set(0);
+        maxDecodeNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "capture jitter mean %.1f ms, max %.1f ms; "
+                + "capture lag %d ms, max %d ms, dropped chunks %d; "
+                + "decode max %.1f ms, missed deadlines %d of %d; "
+                + "dropped recorder chunks %d",
+                getMeanCaptureJitterMillis(), getMaxCaptureJitterMillis(),
+                getCaptureLagMillis(), getMaxCaptureLagMillis(),
+                getDroppedCaptureChunks(), getMaxDecodeMillis(),
+                getMissedDeadlines(), getDecodedChunks(),
+                getDroppedAudioChunks());
+    }
+}
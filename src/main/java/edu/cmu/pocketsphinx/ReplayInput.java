@@ -0,0 +1,120 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Audio input which plays back the chunks of a session trace as fast as the
+ * recognizer reads them. The input clock is simulated: it follows the
+ * recorded capture time of the current chunk plus the time spent since the
+ * chunk was read, so the timestamps of the replayed events include the real
+ * processing time but not the waiting for the audio.
+ */
+class ReplayInput implements AudioInput {
+
+    private final List<SessionTrace.Chunk> chunks;
+    private final CountDownLatch ended = new CountDownLatch(1);
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private int next;
+    private int offset;
+    private long chunkTime;
+    private long readNanos;
+
+    ReplayInput(List<SessionTrace.Chunk> chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * Waits until all the chunks are read or the recognizer stops reading.
+     */
+    void awaitEnd() throws InterruptedException {
+        ended.await();
+    }
+
+    @Override
+    public void start() {
+        next = 0;
+        offset = 0;
+        chunkTime = 0;
+        readNanos = System.nanoTime();
+    }
+
+    @Override
+    public int read(short[] buffer, int length) {
+        if (next >= chunks.size()) {
+            ended.countDown();
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                // Restore the interrupted status.
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+            return END_OF_STREAM;
+        }
+
+        SessionTrace.Chunk chunk = chunks.get(next);
+        int nread = Math.min(length, chunk.data.length - offset);
+        System.arraycopy(chunk.data, offset, buffer, 0, nread);
+        offset += nread;
+        if (offset == chunk.data.length) {
+            next++;
+            offset = 0;
+        }
+
+        chunkTime = chunk.time;
+        readNanos = System.nanoTime();
+        return nread;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return chunkTime + (System.nanoTime() - readNanos) / 1000000;
+    }
+
+    @Override
+    public void finish() {
+        finished.countDown();
+    }
+
+    @Override
+    public void stop() {
+        ended.countDown();
+    }
+
+    @Override
+    public void release() {
+        finish();
+    }
+}
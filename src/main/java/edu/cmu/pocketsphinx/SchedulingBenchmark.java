@@ -0,0 +1,233 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Measures capture jitter and missed decoding deadlines with the default
+ * scheduling and with the audio priority and performance cores, see
+ * {@link SpeechRecognizerSetup#setDecoderThreadPriority} and
+ * {@link SpeechRecognizerSetup#setPreferPerformanceCores}.
+ * 
+ * Every round listens to the microphone for the given time in both modes, the
+ * order alternates between rounds. Busy threads with the default priority
+ * compete for the CPU meanwhile, like a busy application would. Play speech
+ * near the microphone during the run, silence is decoded much faster. The
+ * setup is left with the scheduling of the last mode. The benchmark takes
+ * rounds * seconds * 2 seconds, do not call it on the main thread.
+ */
+public class SchedulingBenchmark {
+
+    protected static final String TAG = SchedulingBenchmark.class.getSimpleName();
+
+    private static final String SEARCH_NAME = "benchmark";
+
+    /**
+     * Figures of one mode summed over the rounds.
+     */
+    public static class Result {
+        private final boolean tuned;
+        private long captureReads;
+        private double captureJitterMillis;
+        private double maxCaptureJitterMillis;
+        private long decodedChunks;
+        private long missedDeadlines;
+        private double maxDecodeMillis;
+        private long droppedCaptureChunks;
+
+        Result(boolean tuned) {
+            this.tuned = tuned;
+        }
+
+        /**
+         * Returns true for the audio priority and performance cores, false
+         * for the default scheduling.
+         */
+        public boolean isTuned() {
+            return tuned;
+        }
+
+        public double getMeanCaptureJitterMillis() {
+            return captureReads == 0 ? 0 : captureJitterMillis / captureReads;
+        }
+
+        public double getMaxCaptureJitterMillis() {
+            return maxCaptureJitterMillis;
+        }
+
+        public long getDecodedChunks() {
+            return decodedChunks;
+        }
+
+        public long getMissedDeadlines() {
+            return missedDeadlines;
+        }
+
+        public double getMaxDecodeMillis() {
+            return maxDecodeMillis;
+        }
+
+        public long getDroppedCaptureChunks() {
+            return droppedCaptureChunks;
+        }
+
+        void add(RecognizerMetrics metrics) {
+            captureReads += metrics.getCaptureReads();
+            captureJitterMillis += metrics.getMeanCaptureJitterMillis()
+                    * metrics.getCaptureReads();
+            maxCaptureJitterMillis = Math.max(maxCaptureJitterMillis,
+                    metrics.getMaxCaptureJitterMillis());
+            decodedChunks += metrics.getDecodedChunks();
+            missedDeadlines += metrics.getMissedDeadlines();
+            maxDecodeMillis = Math.max(maxDecodeMillis, metrics.getMaxDecodeMillis());
+            droppedCaptureChunks += metrics.getDroppedCaptureChunks();
+        }
+
+        @Override
+        public String toString() {
+            return format(Locale.US,
+                    "%s: capture jitter mean %.1f ms, max %.1f ms;"
+                            + " decode max %.1f ms, missed deadlines %d of %d;"
+                            + " dropped chunks %d",
+                    tuned ? "tuned" : "default",
+                    getMeanCaptureJitterMillis(), maxCaptureJitterMillis,
+                    maxDecodeMillis, missedDeadlines, decodedChunks,
+                    droppedCaptureChunks);
+        }
+    }
+
+    private SchedulingBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     * 
+     * @param setup
+     *            setup with the acoustic model and the dictionary
+     * @param languageModel
+     *            N-gram model to decode with
+     * @param seconds
+     *            listening time of every round in every mode
+     * @param rounds
+     *            number of rounds
+     * @param loadThreads
+     *            number of busy threads running meanwhile, usually the
+     *            number of cores
+     * @return results with the default and with the tuned scheduling
+     * @throws IOException
+     *             if the microphone can not be opened
+     */
+    public static List<Result> run(SpeechRecognizerSetup setup,
+            File languageModel, int seconds, int rounds, int loadThreads)
+            throws IOException, InterruptedException {
+        if (rounds < 1)
+            throw new IllegalArgumentException("rounds must be positive");
+
+        Result[] results = { new Result(false), new Result(true) };
+        Load load = new Load(loadThreads);
+        try {
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < results.length; i++) {
+                    Result result = results[(round + i) % results.length];
+                    measure(setup, languageModel, seconds, result);
+                }
+            }
+        } finally {
+            load.stop();
+        }
+
+        List<Result> list = new ArrayList<Result>();
+        for (Result result : results) {
+            Log.i(TAG, result.toString());
+            list.add(result);
+        }
+        return list;
+    }
+
+    private static void measure(SpeechRecognizerSetup setup, File languageModel,
+            int seconds, Result result) throws IOException, InterruptedException {
+        setup.setDecoderThreadPriority(result.tuned
+                ? Process.THREAD_PRIORITY_AUDIO : Process.THREAD_PRIORITY_DEFAULT);
+        setup.setPreferPerformanceCores(result.tuned);
+
+        SpeechRecognizer recognizer = setup.getRecognizer();
+        try {
+            recognizer.addNgramSearch(SEARCH_NAME, languageModel);
+            recognizer.getMetrics().reset();
+            recognizer.startListening(SEARCH_NAME);
+            Thread.sleep(seconds * 1000L);
+            recognizer.stop();
+            result.add(recognizer.getMetrics());
+        } finally {
+            recognizer.shutdown();
+        }
+    }
+
+    /**
+     * Threads which keep the cores busy with the default priority.
+     */
+    private static class Load implements Runnable {
+        private final List<Thread> threads = new ArrayList<Thread>();
+        private volatile boolean stopped;
+
+        Load(int count) {
+            for (int i = 0; i < count; i++) {
+                Thread thread = new Thread(this, format("%s-load-%d", TAG, i));
+                thread.start();
+                threads.add(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                // Spin
+            }
+        }
+
+        void stop() throws InterruptedException {
+            stopped = true;
+            for (Thread thread : threads)
+                thread.join();
+        }
+    }
+}
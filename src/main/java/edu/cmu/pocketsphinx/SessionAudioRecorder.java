@@ -0,0 +1,296 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Stores recognized audio for later analysis. Unlike the decoder raw log
+ * enabled with {@link SpeechRecognizerSetup#setRawLogDir} it never blocks the
+ * capture: chunks are passed through a bounded queue to a low priority thread
+ * which compresses them with IMA ADPCM into WAV files. If the queue is full
+ * the chunk is dropped and counted.
+ * 
+ * Each session is written to a separate file, files are split once they
+ * reach a quarter of the total size limit. Before a file is opened the oldest
+ * recordings are removed to leave room for it, so the directory including the
+ * file being written stays within the limit.
+ */
+public class SessionAudioRecorder {
+
+    protected static final String TAG = SessionAudioRecorder.class.getSimpleName();
+
+    private static final String PREFIX = "session-";
+    private static final String SUFFIX = ".wav";
+    private static final int DEFAULT_QUEUE_SIZE = 32;
+
+    private final File dir;
+    private final long maxTotalBytes;
+    private final long maxFileBytes;
+    private final int queueSize;
+
+    private final BlockingQueue<Message> queue = new LinkedBlockingQueue<Message>();
+    private final AtomicInteger queuedChunks = new AtomicInteger();
+    private final AtomicLong droppedChunks = new AtomicLong();
+    private final Thread writerThread;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates recorder with default queue size of {@value #DEFAULT_QUEUE_SIZE}
+     * chunks.
+     * 
+     * @param dir
+     *            directory to store recordings in
+     * @param maxTotalBytes
+     *            limit on the total size of recordings in the directory
+     */
+    public SessionAudioRecorder(File dir, long maxTotalBytes) {
+        this(dir, maxTotalBytes, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Creates recorder.
+     * 
+     * @param dir
+     *            directory to store recordings in
+     * @param maxTotalBytes
+     *            limit on the total size of recordings in the directory
+     * @param queueSize
+     *            number of chunks which can wait for encoding
+     */
+    public SessionAudioRecorder(File dir, long maxTotalBytes, int queueSize) {
+        this.dir = dir;
+        this.maxTotalBytes = maxTotalBytes;
+        this.maxFileBytes = Math.max(maxTotalBytes / 4, AdpcmWavWriter.BLOCK_ALIGN);
+        this.queueSize = queueSize;
+        writerThread = new WriterThread();
+        writerThread.start();
+    }
+
+    /**
+     * Starts a new recording, it continues until {@link #endSession}.
+     */
+    public void startSession(int sampleRate) {
+        queue.offer(new Message(Message.START, null, sampleRate));
+    }
+
+    /**
+     * Queues audio chunk for writing. The data is copied so the buffer can be
+     * reused right away. Never blocks.
+     * 
+     * @return false if the chunk was dropped because the queue was full
+     */
+    public boolean write(short[] buffer, int length) {
+        if (closed || queuedChunks.incrementAndGet() > queueSize) {
+            queuedChunks.decrementAndGet();
+            droppedChunks.incrementAndGet();
+            return false;
+        }
+        queue.offer(new Message(Message.DATA, Arrays.copyOf(buffer, length), 0));
+        return true;
+    }
+
+    /**
+     * Finishes the current recording.
+     */
+    public void endSession() {
+        queue.offer(new Message(Message.END, null, 0));
+    }
+
+    /**
+     * Returns the total number of chunks dropped so far.
+     */
+    public long getDroppedChunks() {
+        return droppedChunks.get();
+    }
+
+    /**
+     * Writes the remaining data and stops the writer thread.
+     */
+    public void close() {
+        closed = true;
+        queue.offer(new Message(Message.CLOSE, null, 0));
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            // Restore the interrupted status.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Message {
+        static final int START = 0;
+        static final int DATA = 1;
+        static final int END = 2;
+        static final int CLOSE = 3;
+
+        final int type;
+        final short[] data;
+        final int sampleRate;
+
+        Message(int type, short[] data, int sampleRate) {
+            this.type = type;
+            this.data = data;
+            this.sampleRate = sampleRate;
+        }
+    }
+
+    private final class WriterThread extends Thread {
+
+        private final SimpleDateFormat dateFormat =
+                new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.US);
+        private AdpcmWavWriter writer;
+        private String sessionName;
+        private int sampleRate;
+        private int part;
+
+        WriterThread() {
+            super(SessionAudioRecorder.TAG);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            dir.mkdirs();
+
+            while (true) {
+                Message message;
+                try {
+                    message = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                try {
+                    switch (message.type) {
+                    case Message.START:
+                        finishFile();
+                        sessionName = PREFIX + dateFormat.format(new Date());
+                        sampleRate = message.sampleRate;
+                        part = 0;
+                        break;
+                    case Message.DATA:
+                        queuedChunks.decrementAndGet();
+                        if (null == sessionName)
+                            break;
+                        if (null == writer)
+                            openFile();
+                        writer.write(message.data, message.data.length);
+                        if (writer.getSize() >= maxFileBytes)
+                            finishFile();
+                        break;
+                    case Message.END:
+                        finishFile();
+                        sessionName = null;
+                        break;
+                    case Message.CLOSE:
+                        finishFile();
+                        return;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write session audio", e);
+                    abortFile();
+                    sessionName = null;
+                }
+            }
+        }
+
+        private void openFile() throws IOException {
+            removeOldFiles(maxFileBytes);
+            String name = format(Locale.US, "%s-%02d%s", sessionName, part++, SUFFIX);
+            writer = new AdpcmWavWriter(new File(dir, name), sampleRate);
+        }
+
+        private void finishFile() throws IOException {
+            if (null == writer)
+                return;
+            AdpcmWavWriter finished = writer;
+            writer = null;
+            try {
+                finished.close();
+            } catch (IOException e) {
+                finished.abort();
+                throw e;
+            }
+        }
+
+        private void abortFile() {
+            if (null == writer)
+                return;
+            Log.w(TAG, format("Removing incomplete recording %s", writer.getFile()));
+            writer.abort();
+            writer = null;
+        }
+
+        /**
+         * Removes the oldest recordings until the given number of bytes
+         * fits within the limit.
+         */
+        private void removeOldFiles(long reserve) {
+            File[] files = dir.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                }
+            });
+            if (null == files)
+                return;
+
+            // Names start with the timestamp so they sort by age
+            Arrays.sort(files);
+            long total = 0;
+            for (File file : files)
+                total += file.length();
+
+            for (int i = 0; i < files.length && total + reserve > maxTotalBytes; i++) {
+                total -= files[i].length();
+                Log.i(TAG, format("Removing old recording %s", files[i]));
+                files[i].delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import android.util.Log;
+
+/**
+ * Replays a {@link SessionTrace} through the recognition loop and compares
+ * the produced events with the recorded ones. The audio is fed on a simulated
+ * clock, see {@link ReplayInput}, so timeouts and speech detection behave
+ * exactly as in the recorded session while the event timestamps reflect the
+ * processing speed of the current library build.
+ * 
+ * The replay blocks until the session is finished, do not run it on the main
+ * thread. Model and search files referenced by the trace must exist at the
+ * recorded paths.
+ */
+public class SessionReplay {
+
+    protected static final String TAG = SessionReplay.class.getSimpleName();
+
+    /**
+     * Differences between the recorded and the replayed session.
+     */
+    public static class Report {
+        private final SessionTrace recorded;
+        private final SessionTrace replayed;
+        private final List<String> differences = new ArrayList<String>();
+        private long maxLatencyDelta;
+        private double meanLatencyDelta;
+
+        Report(SessionTrace recorded, SessionTrace replayed) {
+            this.recorded = recorded;
+            this.replayed = replayed;
+
+            List<SessionTrace.Event> expected = recorded.getEvents();
+            List<SessionTrace.Event> unmatched = replayed.getEvents();
+            long totalDelta = 0;
+            int matched = 0;
+            for (SessionTrace.Event e : expected) {
+                SessionTrace.Event a = take(unmatched, e);
+                if (null == a) {
+                    if (!SessionTrace.PARTIAL_RESULT.equals(e.type))
+                        differences.add(format(Locale.US,
+                                "recorded [%s] is not replayed", e));
+                    continue;
+                }
+                if (!equal(e.text, a.text))
+                    differences.add(format(Locale.US,
+                            "recorded [%s], replayed [%s]", e, a));
+                long delta = a.time - e.time;
+                if (matched == 0 || Math.abs(delta) > Math.abs(maxLatencyDelta))
+                    maxLatencyDelta = delta;
+                totalDelta += delta;
+                matched++;
+            }
+            if (matched > 0)
+                meanLatencyDelta = (double) totalDelta / matched;
+
+            // The replay of a truncated trace continues past the last
+            // recorded event
+            long end = Long.MAX_VALUE;
+            if (recorded.isTruncated())
+                end = expected.isEmpty() ? -1
+                        : expected.get(expected.size() - 1).audioTime;
+            for (SessionTrace.Event a : unmatched) {
+                if (!SessionTrace.PARTIAL_RESULT.equals(a.type) && a.audioTime <= end)
+                    differences.add(format(Locale.US,
+                            "replayed [%s] is not recorded", a));
+            }
+        }
+
+        /**
+         * Removes and returns the first event of the same type at the same
+         * audio position.
+         */
+        private static SessionTrace.Event take(List<SessionTrace.Event> events,
+                SessionTrace.Event event) {
+            for (Iterator<SessionTrace.Event> i = events.iterator(); i.hasNext();) {
+                SessionTrace.Event candidate = i.next();
+                if (candidate.type.equals(event.type)
+                        && candidate.audioTime == event.audioTime) {
+                    i.remove();
+                    return candidate;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns true if the replayed events differ from the recorded ones.
+         * Events are matched by type and audio position, the text of the
+         * matched events must be equal. Partial results still pending at the
+         * end of the utterance are dropped rather than delivered, so a
+         * partial result present in only one of the sessions is not a
+         * difference.
+         */
+        public boolean hasDifferences() {
+            return !differences.isEmpty();
+        }
+
+        public List<String> getDifferences() {
+            return Collections.unmodifiableList(differences);
+        }
+
+        public String getRecordedResult() {
+            return finalResult(recorded);
+        }
+
+        public String getReplayedResult() {
+            return finalResult(replayed);
+        }
+
+        /**
+         * Returns the largest difference of the event time, replayed minus
+         * recorded, in milliseconds. Positive values mean that the events
+         * are delivered later than in the recorded session.
+         */
+        public long getMaxLatencyDelta() {
+            return maxLatencyDelta;
+        }
+
+        public double getMeanLatencyDelta() {
+            return meanLatencyDelta;
+        }
+
+        public SessionTrace getReplayedTrace() {
+            return replayed;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(format(Locale.US, "recorded result: %s%n", getRecordedResult()));
+            sb.append(format(Locale.US, "replayed result: %s%n", getReplayedResult()));
+            sb.append(format(Locale.US, "latency delta: mean %.1f ms, max %d ms%n",
+                    meanLatencyDelta, maxLatencyDelta));
+            sb.append(format(Locale.US, "%d differences%n", differences.size()));
+            for (String difference : differences)
+                sb.append(difference).append(format("%n"));
+            return sb.toString();
+        }
+
+        private static String finalResult(SessionTrace trace) {
+            String result = null;
+            for (SessionTrace.Event event : trace.getEvents())
+                if (SessionTrace.RESULT.equals(event.type))
+                    result = event.text;
+            return result;
+        }
+
+        private static boolean equal(String a, String b) {
+            return null == a ? null == b : a.equals(b);
+        }
+    }
+
+    private final SessionTrace trace;
+
+    public SessionReplay(SessionTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Reads the trace from the file and replays it.
+     */
+    public static Report replay(File file) throws IOException,
+            InterruptedException {
+        return new SessionReplay(SessionTrace.read(file)).run();
+    }
+
+    public Report run() throws IOException, InterruptedException {
+        SpeechRecognizerSetup setup = null == trace.getConfigFile()
+                ? SpeechRecognizerSetup.defaultSetup()
+                : SpeechRecognizerSetup.setupFromFile(new File(trace.getConfigFile()));
+        for (Map.Entry<String, Object> entry : trace.getSettings().entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Boolean)
+                setup.setBoolean(entry.getKey(), (Boolean) value);
+            else if (value instanceof Integer)
+                setup.setInteger(entry.getKey(), (Integer) value);
+            else if (value instanceof Double)
+                setup.setFloat(entry.getKey(), (Double) value);
+            else
+                setup.setString(entry.getKey(), (String) value);
+        }
+
+        ReplayInput input = new ReplayInput(trace.getChunks());
+        SpeechRecognizer recognizer = setup.getRecognizer(input);
+        try {
+            for (SessionTrace.Search search : trace.getSearches())
+                addSearch(recognizer, search);
+            recognizer.addWords(trace.getWords());
+            if (trace.hasIncrementalListeners())
+                recognizer.addListener(new IdleListener());
+
+            recognizer.setTracing(true);
+            recognizer.startListening(trace.getSearchName(), trace.getTimeout());
+            input.awaitEnd();
+
+            Future<Hypothesis> result = trace.isCancelled()
+                    ? recognizer.cancelAsync() : recognizer.stopAsync();
+            if (null != result) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("replay failed", e.getCause());
+                }
+            }
+            SessionTrace replayed = recognizer.getLastTrace();
+            if (null != replayed)
+                replayed.awaitComplete();
+            return new Report(trace, replayed);
+        } finally {
+            recognizer.shutdown();
+        }
+    }
+
+    private static void addSearch(SpeechRecognizer recognizer,
+            SessionTrace.Search search) {
+        if (SessionTrace.SEARCH_GRAMMAR_FILE.equals(search.type))
+            recognizer.addGrammarSearch(search.name, new File(search.argument));
+        else if (SessionTrace.SEARCH_GRAMMAR_STRING.equals(search.type))
+            recognizer.addGrammarSearch(search.name, search.argument);
+        else if (SessionTrace.SEARCH_NGRAM.equals(search.type))
+            recognizer.addNgramSearch(search.name, new File(search.argument));
+        else if (SessionTrace.SEARCH_KEYPHRASE.equals(search.type))
+            recognizer.addKeyphraseSearch(search.name, search.argument);
+        else if (SessionTrace.SEARCH_KEYWORD.equals(search.type))
+            recognizer.addKeywordSearch(search.name, new File(search.argument));
+        else if (SessionTrace.SEARCH_ALLPHONE.equals(search.type))
+            recognizer.addAllphoneSearch(search.name, new File(search.argument));
+        else
+            Log.w(TAG, format("Search %s of type %s can not be replayed",
+                    search.name, search.type));
+    }
+
+    /**
+     * Makes the recognizer produce the incremental events as in the recorded
+     * session.
+     */
+    private static class IdleListener implements IncrementalRecognitionListener {
+        @Override
+        public void onBeginningOfSpeech() {
+        }
+
+        @Override
+        public void onEndOfSpeech() {
+        }
+
+        @Override
+        public void onPartialResult(Hypothesis hypothesis) {
+        }
+
+        @Override
+        public void onResult(Hypothesis hypothesis) {
+        }
+
+        @Override
+        public void onError(Exception exception) {
+        }
+
+        @Override
+        public void onTimeout() {
+        }
+
+        @Override
+        public void onWordsCommitted(List<WordSegment> words) {
+        }
+
+        @Override
+        public void onTentativeWords(List<WordSegment> words) {
+        }
+    }
+}
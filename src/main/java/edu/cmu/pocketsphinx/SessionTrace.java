@@ -0,0 +1,411 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Complete record of a single recognition session: decoder configuration,
+ * registered searches and added words, captured audio chunks with their
+ * timestamps and the events delivered to the listeners. Traces are written by
+ * {@link SpeechRecognizer#setTraceDir} and replayed by {@link SessionReplay}.
+ * 
+ * Timestamps are in milliseconds since the start of the utterance. Events
+ * carry two timestamps: the time they were posted and the amount of audio
+ * processed at that moment. The latter does not depend on the device speed.
+ * Only the events actually delivered to the listeners are recorded.
+ * 
+ * The audio is kept in memory until the session ends, so the recorded
+ * duration is limited. Once the limit is reached the trace is truncated:
+ * neither the audio nor the events after it are recorded.
+ */
+public class SessionTrace {
+
+    private static final int MAGIC = 0x50535452;
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Event types */
+    public static final String BEGINNING_OF_SPEECH = "begin";
+    public static final String END_OF_SPEECH = "end";
+    public static final String PARTIAL_RESULT = "partial";
+    public static final String RESULT = "result";
+    public static final String WORDS_COMMITTED = "words";
+    public static final String TIMEOUT = "timeout";
+    public static final String ERROR = "error";
+
+    /** Search types, the argument is the file path or the search string */
+    public static final String SEARCH_GRAMMAR_FILE = "jsgf";
+    public static final String SEARCH_GRAMMAR_STRING = "jsgf_string";
+    public static final String SEARCH_NGRAM = "lm";
+    public static final String SEARCH_KEYPHRASE = "keyphrase";
+    public static final String SEARCH_KEYWORD = "kws";
+    public static final String SEARCH_ALLPHONE = "allphone";
+    /** Search created from the FsgModel object, it can not be replayed */
+    public static final String SEARCH_FSG = "fsg";
+
+    public static class Search {
+        public final String type;
+        public final String name;
+        public final String argument;
+
+        public Search(String type, String name, String argument) {
+            this.type = type;
+            this.name = name;
+            this.argument = argument;
+        }
+    }
+
+    public static class Chunk {
+        public final long time;
+        public final short[] data;
+
+        public Chunk(long time, short[] data) {
+            this.time = time;
+            this.data = data;
+        }
+    }
+
+    public static class Event {
+        public final long time;
+        public final long audioTime;
+        public final String type;
+        public final String text;
+
+        public Event(long time, long audioTime, String type, String text) {
+            this.time = time;
+            this.audioTime = audioTime;
+            this.type = type;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d ms (audio %d ms) %s %s",
+                    time, audioTime, type, null == text ? "" : text);
+        }
+    }
+
+    private final String configFile;
+    private final Map<String, Object> settings;
+    private final List<Search> searches;
+    private final Map<String, String> words;
+    private final String searchName;
+    private final int timeout;
+    private final boolean incremental;
+    private final List<Chunk> chunks = new ArrayList<Chunk>();
+    private final List<Event> events = new ArrayList<Event>();
+    private boolean cancelled;
+    private long maxSamples = Long.MAX_VALUE;
+    private long samples;
+    private boolean truncated;
+    private boolean complete;
+
+    /**
+     * @param configFile
+     *            configuration file or null for the default configuration
+     * @param settings
+     *            values set on top of the configuration, Boolean, Integer,
+     *            Double or String
+     * @param searches
+     *            searches registered in the recognizer
+     * @param words
+     *            words added to the dictionary
+     * @param searchName
+     *            active search
+     * @param timeout
+     *            listening timeout in milliseconds or -1
+     * @param incremental
+     *            whether incremental listeners were registered
+     */
+    public SessionTrace(String configFile, Map<String, Object> settings,
+            List<Search> searches, Map<String, String> words,
+            String searchName, int timeout, boolean incremental) {
+        this.configFile = configFile;
+        this.settings = new LinkedHashMap<String, Object>(settings);
+        this.searches = new ArrayList<Search>(searches);
+        this.words = new LinkedHashMap<String, String>(words);
+        this.searchName = searchName;
+        this.timeout = timeout;
+        this.incremental = incremental;
+    }
+
+    public String getConfigFile() {
+        return configFile;
+    }
+
+    public Map<String, Object> getSettings() {
+        return Collections.unmodifiableMap(settings);
+    }
+
+    public List<Search> getSearches() {
+        return Collections.unmodifiableList(searches);
+    }
+
+    public Map<String, String> getWords() {
+        return Collections.unmodifiableMap(words);
+    }
+
+    public String getSearchName() {
+        return searchName;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public boolean hasIncrementalListeners() {
+        return incremental;
+    }
+
+    public synchronized List<Chunk> getChunks() {
+        return new ArrayList<Chunk>(chunks);
+    }
+
+    public synchronized List<Event> getEvents() {
+        return new ArrayList<Event>(events);
+    }
+
+    /**
+     * Returns true if the session was cancelled rather than stopped.
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns true if the session was longer than the recording limit.
+     */
+    public synchronized boolean isTruncated() {
+        return truncated;
+    }
+
+    synchronized void setMaxSamples(long maxSamples) {
+        this.maxSamples = maxSamples;
+    }
+
+    synchronized void addChunk(long time, short[] data, int length) {
+        if (truncated || samples + length > maxSamples) {
+            truncated = true;
+            return;
+        }
+        samples += length;
+        short[] copy = new short[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        chunks.add(new Chunk(time, copy));
+    }
+
+    synchronized void addEvent(long time, long audioTime, String type, String text) {
+        events.add(new Event(time, audioTime, type, text));
+    }
+
+    synchronized void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Marks that all the events of the session are delivered.
+     */
+    synchronized void complete() {
+        complete = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits until all the events of the session are delivered.
+     */
+    synchronized void awaitComplete() throws InterruptedException {
+        while (!complete)
+            wait();
+    }
+
+    public synchronized void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, configFile);
+
+            out.writeInt(settings.size());
+            for (Map.Entry<String, Object> entry : settings.entrySet()) {
+                writeString(out, entry.getKey());
+                Object value = entry.getValue();
+                if (value instanceof Boolean) {
+                    out.writeByte('b');
+                    out.writeBoolean((Boolean) value);
+                } else if (value instanceof Integer) {
+                    out.writeByte('i');
+                    out.writeInt((Integer) value);
+                } else if (value instanceof Double) {
+                    out.writeByte('f');
+                    out.writeDouble((Double) value);
+                } else {
+                    out.writeByte('s');
+                    writeString(out, (String) value);
+                }
+            }
+
+            out.writeInt(searches.size());
+            for (Search search : searches) {
+                writeString(out, search.type);
+                writeString(out, search.name);
+                writeString(out, search.argument);
+            }
+
+            out.writeInt(words.size());
+            for (Map.Entry<String, String> entry : words.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+
+            writeString(out, searchName);
+            out.writeInt(timeout);
+            out.writeBoolean(incremental);
+            out.writeBoolean(cancelled);
+            out.writeBoolean(truncated);
+
+            out.writeInt(chunks.size());
+            for (Chunk chunk : chunks) {
+                out.writeLong(chunk.time);
+                out.writeInt(chunk.data.length);
+                for (short sample : chunk.data)
+                    out.writeShort(sample);
+            }
+
+            out.writeInt(events.size());
+            for (Event event : events) {
+                out.writeLong(event.time);
+                out.writeLong(event.audioTime);
+                writeString(out, event.type);
+                writeString(out, event.text);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static SessionTrace read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a session trace");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("unsupported session trace version " + version);
+            String configFile = readString(in);
+
+            Map<String, Object> settings = new LinkedHashMap<String, Object>();
+            for (int n = in.readInt(); n > 0; n--) {
+                String key = readString(in);
+                switch (in.readByte()) {
+                case 'b':
+                    settings.put(key, in.readBoolean());
+                    break;
+                case 'i':
+                    settings.put(key, in.readInt());
+                    break;
+                case 'f':
+                    settings.put(key, in.readDouble());
+                    break;
+                default:
+                    settings.put(key, readString(in));
+                }
+            }
+
+            List<Search> searches = new ArrayList<Search>();
+            for (int n = in.readInt(); n > 0; n--)
+                searches.add(new Search(readString(in), readString(in), readString(in)));
+
+            Map<String, String> words = new LinkedHashMap<String, String>();
+            for (int n = in.readInt(); n > 0; n--)
+                words.put(readString(in), readString(in));
+
+            SessionTrace trace = new SessionTrace(configFile, settings,
+                    searches, words, readString(in), in.readInt(), in.readBoolean());
+            trace.cancelled = in.readBoolean();
+            trace.truncated = in.readBoolean();
+
+            for (int n = in.readInt(); n > 0; n--) {
+                long time = in.readLong();
+                short[] data = new short[in.readInt()];
+                for (int i = 0; i < data.length; i++)
+                    data[i] = in.readShort();
+                trace.chunks.add(new Chunk(time, data));
+            }
+
+            for (int n = in.readInt(); n > 0; n--)
+                trace.events.add(new Event(in.readLong(), in.readLong(),
+                        readString(in), readString(in)));
+            return trace;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes UTF-8 string with the length prefix, -1 for null. Unlike
+     * writeUTF it has no 64 KB limit, grammar strings can be longer.
+     */
+    private static void writeString(DataOutputStream out, String value)
+            throws IOException {
+        if (null == value) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+}
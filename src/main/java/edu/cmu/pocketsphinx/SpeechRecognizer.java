@@ -32,16 +32,36 @@ package edu.cmu.pocketsphinx;
 
 import static java.lang.String.format;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
 
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder.AudioSource;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
 /**
@@ -60,9 +80,42 @@ public class SpeechRecognizer {
     private final int sampleRate;        
     private final static float BUFFER_SIZE_SECONDS = 0.4f;
     private int bufferSize;
-    private final AudioRecord recorder;
+    private final AudioInput input;
+    private final AudioCaptureHub ownHub;
+    private final ThreadFactory threadFactory;
+    private volatile int decoderPriority = Process.THREAD_PRIORITY_DEFAULT;
+    private volatile boolean preferPerformanceCores;
+
+    private final int frameRate;
+    private final static int WORD_STABLE_UPDATES = 2;
+    private final static float WORD_STABLE_LAG_SECONDS = 0.3f;
+    private final WordStabilizer stabilizer;
+
+    private final static int MAX_NBEST_SIZE = 100;
+    private volatile int nbestSize = 0;
+    private volatile boolean latticeEnabled = false;
+    private ExecutorService detailsExecutor;
+
+    private final RecognizerMetrics metrics = new RecognizerMetrics();
+    private volatile SessionAudioRecorder sessionRecorder;
+
+    private String configFile;
+    private Map<String, Object> settings = Collections.emptyMap();
+    private final List<SessionTrace.Search> searches = new ArrayList<SessionTrace.Search>();
+    private final Map<String, String> addedWords = new LinkedHashMap<String, String>();
+    private final static int DEFAULT_TRACE_SECONDS = 600;
+    private volatile File traceDir;
+    private volatile int traceMaxSeconds = DEFAULT_TRACE_SECONDS;
+    private volatile boolean tracing;
+    private volatile SessionTrace lastTrace;
+
+    private final long acousticModelBytes;
+    private long dictionaryBytes;
+    private final long mappedBytes;
+    private final Map<String, Long> searchBytes = new LinkedHashMap<String, Long>();
     
-    private Thread recognizerThread;
+    private RecognizerThread recognizerThread;
+    private RecognizerThread stoppingThread;
 
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
     
@@ -76,19 +129,55 @@ public class SpeechRecognizer {
      * @throws IOException thrown if audio recorder can not be created for some reason.
      */
     protected SpeechRecognizer(Config config) throws IOException {
-        decoder = new Decoder(config);
+        this(config, null, null);
+    }
+
+    /**
+     * Creates speech recognizer which reads audio from the given input.
+     * 
+     * @param config The configuration object
+     * @param input audio input, the recognizer takes ownership of it. If null
+     *        the recognizer captures the microphone with its own hub.
+     * @param threadFactory factory for the capture and decoding threads or
+     *        null for the default one
+     * @throws IOException thrown if audio recorder can not be created for some reason.
+     */
+    SpeechRecognizer(Config config, AudioInput input, ThreadFactory threadFactory)
+            throws IOException {
+        long heap = Debug.getNativeHeapAllocatedSize();
+        long start = System.nanoTime();
+        this.decoder = new Decoder(config);
+        long loaded = Debug.getNativeHeapAllocatedSize() - heap;
+        acousticModelBytes = Math.min(loaded,
+                MemoryFootprint.acousticModelFileBytes(config, false));
+        dictionaryBytes = Math.max(0, loaded - acousticModelBytes);
+        mappedBytes = MemoryFootprint.acousticModelFileBytes(config, true);
+        Log.i(TAG, format("Decoder loaded in %d ms, native heap %d KiB",
+                (System.nanoTime() - start) / 1000000, loaded / 1024));
+
         sampleRate = (int)decoder.getConfig().getFloat("-samprate");
         bufferSize = Math.round(sampleRate * BUFFER_SIZE_SECONDS);
-        recorder = new AudioRecord(
-                AudioSource.VOICE_RECOGNITION, sampleRate,
-                AudioFormat.CHANNEL_IN_MONO,
-                AudioFormat.ENCODING_PCM_16BIT, bufferSize * 2);
-
-        if (recorder.getState() == AudioRecord.STATE_UNINITIALIZED) {
-            recorder.release();
-            throw new IOException(
-                    "Failed to initialize recorder. Microphone might be already in use.");
+        this.threadFactory = null != threadFactory ? threadFactory : new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable);
+            }
+        };
+        if (null == input) {
+            // Capture runs on a separate thread with the audio priority. If
+            // decoding falls behind the oldest chunks are dropped, this is
+            // reported in the metrics.
+            ownHub = new AudioCaptureHub(sampleRate, threadFactory);
+            input = ownHub.subscribe();
+        } else {
+            ownHub = null;
         }
+        if (input instanceof AudioCaptureHub.Subscription)
+            ((AudioCaptureHub.Subscription) input).setMetrics(metrics);
+        this.input = input;
+        frameRate = decoder.getConfig().getInt("-frate");
+        stabilizer = new WordStabilizer(WORD_STABLE_UPDATES,
+                Math.round(frameRate * WORD_STABLE_LAG_SECONDS));
     }
 
     /**
@@ -109,20 +198,135 @@ public class SpeechRecognizer {
         }
     }
 
+    /**
+     * Sets the number of N-best hypotheses to deliver to
+     * {@link DetailedResultListener} after the final result.
+     * 
+     * @param size
+     *            number of hypotheses from 0 (disabled) to 100
+     */
+    public void setNBestSize(int size) {
+        if (size < 0 || size > MAX_NBEST_SIZE)
+            throw new IllegalArgumentException(format(
+                    "N-best size must be between 0 and %d", MAX_NBEST_SIZE));
+        nbestSize = size;
+    }
+
+    /**
+     * Enables delivery of the compressed word lattice to
+     * {@link DetailedResultListener} after the final result.
+     */
+    public void setLatticeEnabled(boolean enabled) {
+        latticeEnabled = enabled;
+    }
+
+    /**
+     * Sets recorder to store the audio of the following recognition sessions.
+     * The audio is recorded as captured, so chunks dropped because decoding
+     * falls behind are still in the recording. Chunks which do not fit into
+     * the recorder queue are counted in
+     * {@link RecognizerMetrics#getDroppedAudioChunks}.
+     * 
+     * @param recorder
+     *            session recorder or null to stop recording
+     */
+    public void setSessionRecorder(SessionAudioRecorder recorder) {
+        sessionRecorder = recorder;
+    }
+
+    /**
+     * Enables session traces for latency and accuracy regression testing.
+     * Every following recognition session is stored in the directory with
+     * its configuration, searches, audio and listener events. The trace is
+     * written in background after the session is stopped or cancelled. The
+     * audio is kept in memory meanwhile, so only the first
+     * {@value #DEFAULT_TRACE_SECONDS} seconds of a session are recorded.
+     * 
+     * @param dir
+     *            directory for the traces or null to disable tracing
+     * @see SessionReplay
+     */
+    public void setTraceDir(File dir) {
+        setTraceDir(dir, DEFAULT_TRACE_SECONDS);
+    }
+
+    /**
+     * Enables session traces recording at most the given duration of every
+     * session, one second of audio takes 32 KB of memory at 16 kHz. Longer
+     * sessions are truncated, see {@link SessionTrace#isTruncated()}.
+     * 
+     * @param dir
+     *            directory for the traces or null to disable tracing
+     * @param maxSeconds
+     *            longest recorded duration
+     */
+    public void setTraceDir(File dir, int maxSeconds) {
+        if (maxSeconds <= 0)
+            throw new IllegalArgumentException("maxSeconds must be positive");
+        traceMaxSeconds = maxSeconds;
+        traceDir = dir;
+    }
+
+    /**
+     * Keeps the trace of the next sessions in memory, used by the replay.
+     */
+    void setTracing(boolean enabled) {
+        tracing = enabled;
+    }
+
+    SessionTrace getLastTrace() {
+        return lastTrace;
+    }
+
+    void setSettings(String configFile, Map<String, Object> settings) {
+        this.configFile = configFile;
+        this.settings = new LinkedHashMap<String, Object>(settings);
+    }
+
+    /**
+     * Sets priority of the decoding thread, one of the
+     * android.os.Process.THREAD_PRIORITY_* values. Audio is captured on a
+     * separate thread with THREAD_PRIORITY_URGENT_AUDIO. Applies to the next
+     * recognition session.
+     */
+    void setDecoderPriority(int priority) {
+        decoderPriority = priority;
+    }
+
+    /**
+     * Asks to keep the decoding thread on the fastest cores of the device.
+     * Applies to the next recognition session.
+     */
+    void setPreferPerformanceCores(boolean prefer) {
+        preferPerformanceCores = prefer;
+    }
+
+    /**
+     * Returns runtime metrics of this recognizer.
+     */
+    public RecognizerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns estimated native memory held by the decoder.
+     * 
+     * @see MemoryFootprint
+     */
+    public MemoryFootprint getMemoryFootprint() {
+        synchronized (searchBytes) {
+            return new MemoryFootprint(acousticModelBytes, dictionaryBytes,
+                    mappedBytes, searchBytes);
+        }
+    }
+
     /**
      * Starts recognition. Does nothing if recognition is active.
      * 
      * @return true if recognition was actually started
      */
     public boolean startListening(String searchName) {
-        if (null != recognizerThread)
-            return false;
-
-        Log.i(TAG, format("Start recognition \"%s\"", searchName));
-        decoder.setSearch(searchName);
-        recognizerThread = new RecognizerThread();
-        recognizerThread.start();
-        return true;
+        return startRecognizerThread(searchName, RecognizerThread.NO_TIMEOUT);
     }
 
     /**
@@ -134,29 +338,51 @@ public class SpeechRecognizer {
      * @return true if recognition was actually started
      */
     public boolean startListening(String searchName, int timeout) {
+        return startRecognizerThread(searchName, timeout);
+    }
+
+    private boolean startRecognizerThread(String searchName, int timeout) {
         if (null != recognizerThread)
             return false;
 
         Log.i(TAG, format("Start recognition \"%s\"", searchName));
-        decoder.setSearch(searchName);
-        recognizerThread = new RecognizerThread(timeout);
+        RecognizerThread previous = stoppingThread;
+        stoppingThread = null;
+        if (null == previous || !previous.isAlive()) {
+            decoder.setSearch(searchName);
+            stabilizer.reset();
+            recognizerThread = new RecognizerThread(null, null, timeout);
+        } else {
+            // The previous utterance is still being finished after
+            // stopAsync, the new thread switches the search after it.
+            recognizerThread = new RecognizerThread(previous, searchName, timeout);
+        }
         recognizerThread.start();
         return true;
     }
 
-    private boolean stopRecognizerThread() {
+    private Future<Hypothesis> stopRecognizerThread(int mode) {
         if (null == recognizerThread)
+            return null;
+
+        RecognizerThread thread = recognizerThread;
+        recognizerThread = null;
+        stoppingThread = thread;
+        return thread.requestStop(mode);
+    }
+
+    private static boolean waitFor(Future<Hypothesis> future) {
+        if (null == future)
             return false;
 
         try {
-            recognizerThread.interrupt();
-            recognizerThread.join();
+            future.get();
         } catch (InterruptedException e) {
             // Restore the interrupted status.
             Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to finish recognition", e.getCause());
         }
-
-        recognizerThread = null;
         return true;
     }
 
@@ -167,13 +393,21 @@ public class SpeechRecognizer {
      * @return true if recognition was actually stopped
      */
     public boolean stop() {
-        boolean result = stopRecognizerThread();
-        if (result) {
-            Log.i(TAG, "Stop recognition");
-            final Hypothesis hypothesis = decoder.hyp();
-            mainHandler.post(new ResultEvent(hypothesis, true));
-        }
-        return result;
+        return waitFor(stopAsync());
+    }
+
+    /**
+     * Stops recognition without waiting for the recognizer thread. The thread
+     * is woken up from the pending audio read, finishes the utterance and
+     * delivers the final result to the listeners as {@link #stop} does.
+     * Recognition can be started again right away, the new utterance begins
+     * once the previous one is finished.
+     * 
+     * @return future of the final hypothesis or null if recognition is not
+     *         active
+     */
+    public Future<Hypothesis> stopAsync() {
+        return stopRecognizerThread(RecognizerThread.STOP_RESULT);
     }
 
     /**
@@ -183,12 +417,18 @@ public class SpeechRecognizer {
      * @return true if recognition was actually canceled
      */
     public boolean cancel() {
-        boolean result = stopRecognizerThread();
-        if (result) {
-            Log.i(TAG, "Cancel recognition");
-        }
+        return waitFor(cancelAsync());
+    }
 
-        return result;
+    /**
+     * Cancels recognition without waiting for the recognizer thread.
+     * Listeners do not receive final result.
+     * 
+     * @return future which completes with null once the recognizer thread
+     *         is finished or null if recognition is not active
+     */
+    public Future<Hypothesis> cancelAsync() {
+        return stopRecognizerThread(RecognizerThread.STOP_CANCEL);
     }
     
     /**
@@ -205,7 +445,13 @@ public class SpeechRecognizer {
      * Shutdown the recognizer and release the recorder
      */
     public void shutdown() {
-        recorder.release();
+        synchronized (this) {
+            if (null != detailsExecutor)
+                detailsExecutor.shutdown();
+        }
+        input.release();
+        if (null != ownHub)
+            ownHub.release();
     }
     
     /**
@@ -218,7 +464,9 @@ public class SpeechRecognizer {
     }
 
     public void addFsgSearch(String searchName, FsgModel fsgModel) {
+        long heap = Debug.getNativeHeapAllocatedSize();
         decoder.setFsg(searchName, fsgModel);
+        registerSearch(SessionTrace.SEARCH_FSG, searchName, null, heap);
     }
 
     /**
@@ -231,7 +479,9 @@ public class SpeechRecognizer {
      */
     public void addGrammarSearch(String name, File file) {
         Log.i(TAG, format("Load JSGF %s", file));
+        long heap = Debug.getNativeHeapAllocatedSize();
         decoder.setJsgfFile(name, file.getPath());
+        registerSearch(SessionTrace.SEARCH_GRAMMAR_FILE, name, file.getPath(), heap);
     }
 
     /**
@@ -243,7 +493,9 @@ public class SpeechRecognizer {
      *            JSGF string
      */
     public void addGrammarSearch(String name, String jsgfString) {
+        long heap = Debug.getNativeHeapAllocatedSize();
         decoder.setJsgfString(name, jsgfString);
+        registerSearch(SessionTrace.SEARCH_GRAMMAR_STRING, name, jsgfString, heap);
     }
 
     /**
@@ -256,7 +508,9 @@ public class SpeechRecognizer {
      */
     public void addNgramSearch(String name, File file) {
         Log.i(TAG, format("Load N-gram model %s", file));
+        long heap = Debug.getNativeHeapAllocatedSize();
         decoder.setLmFile(name, file.getPath());
+        registerSearch(SessionTrace.SEARCH_NGRAM, name, file.getPath(), heap);
     }
 
     /**
@@ -268,7 +522,9 @@ public class SpeechRecognizer {
      *            search phrase
      */
     public void addKeyphraseSearch(String name, String phrase) {
+        long heap = Debug.getNativeHeapAllocatedSize();
         decoder.setKeyphrase(name, phrase);
+        registerSearch(SessionTrace.SEARCH_KEYPHRASE, name, phrase, heap);
     }
 
     /**
@@ -285,7 +541,9 @@ public class SpeechRecognizer {
      *            </code>
      */
     public void addKeywordSearch(String name, File file) {
+        long heap = Debug.getNativeHeapAllocatedSize();
         decoder.setKws(name, file.getPath());
+        registerSearch(SessionTrace.SEARCH_KEYWORD, name, file.getPath(), heap);
     }
     
     /**
@@ -297,16 +555,349 @@ public class SpeechRecognizer {
      * 
      */
     public void addAllphoneSearch(String name, File file) {
+        long heap = Debug.getNativeHeapAllocatedSize();
         decoder.setAllphoneFile(name, file.getPath());
+        registerSearch(SessionTrace.SEARCH_ALLPHONE, name, file.getPath(), heap);
     }
 
-    private final class RecognizerThread extends Thread {
+    private void registerSearch(String type, String name, String argument,
+            long heapBefore) {
+        long bytes = Debug.getNativeHeapAllocatedSize() - heapBefore;
+        synchronized (searchBytes) {
+            // A replaced search moves to the end like in the search list
+            searchBytes.remove(name);
+            searchBytes.put(name, Math.max(0, bytes));
+        }
+        synchronized (searches) {
+            Iterator<SessionTrace.Search> it = searches.iterator();
+            while (it.hasNext())
+                if (it.next().name.equals(name))
+                    it.remove();
+            searches.add(new SessionTrace.Search(type, name, argument));
+        }
+    }
+
+    /**
+     * Adds words to the dictionary in one batch. Unlike adding words one by
+     * one with {@link Decoder#addWord}, searches are rebuilt only once after
+     * the last word. Words already present in the dictionary are skipped.
+     * <p>
+     * The rebuild is requested by the last new word. The dictionary can not
+     * take a word twice, so if that word fails to add, the searches are
+     * rebuilt by adding an alternative pronunciation identical to the last
+     * word which was added, for example "hello(2)". The alternative stays in
+     * the dictionary, it is recorded in the session traces like the other
+     * added words but is not counted in the returned number.
+     * 
+     * @param words
+     *            map of words to their space-separated phones
+     * @return number of words added
+     */
+    public int addWords(Map<String, String> words) {
+        List<Map.Entry<String, String>> newWords =
+                new ArrayList<Map.Entry<String, String>>();
+        for (Map.Entry<String, String> entry : words.entrySet())
+            if (null == decoder.lookupWord(entry.getKey()))
+                newWords.add(entry);
+
+        long heap = Debug.getNativeHeapAllocatedSize();
+        int added = 0;
+        String lastAdded = null;
+        boolean updated = false;
+        for (int i = 0; i < newWords.size(); i++) {
+            Map.Entry<String, String> entry = newWords.get(i);
+            boolean last = i == newWords.size() - 1;
+            if (decoder.addWord(entry.getKey(), entry.getValue(), last ? 1 : 0) < 0) {
+                Log.w(TAG, format("Failed to add word %s", entry.getKey()));
+                continue;
+            }
+            added++;
+            lastAdded = entry.getKey();
+            updated = last;
+            synchronized (addedWords) {
+                addedWords.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (added > 0 && !updated)
+            updateSearches(lastAdded);
+
+        synchronized (searchBytes) {
+            dictionaryBytes = Math.max(0, dictionaryBytes
+                    + Debug.getNativeHeapAllocatedSize() - heap);
+        }
+        Log.i(TAG, format("Added %d words to the dictionary", added));
+        return added;
+    }
+
+    /**
+     * Rebuilds the searches after the word which was to update them failed.
+     * The dictionary rejects words it already has, so the update comes with
+     * an identical alternative pronunciation of a word which was added. The
+     * alternative is recorded with the added words, so a replay builds the
+     * same dictionary.
+     */
+    private void updateSearches(String word) {
+        String phones = decoder.lookupWord(word);
+        String alternative;
+        int n = 2;
+        while (null != decoder.lookupWord(alternative = format("%s(%d)", word, n)))
+            n++;
+        if (null == phones || decoder.addWord(alternative, phones, 1) < 0) {
+            Log.e(TAG, "Searches were not updated with the new words");
+            return;
+        }
+        Log.w(TAG, format("Added %s to update the searches", alternative));
+        synchronized (addedWords) {
+            addedWords.put(alternative, phones);
+        }
+    }
+
+    /**
+     * Adds words to the dictionary in one batch taking pronunciations from
+     * the cache. Pronunciations missing in the cache are generated and the
+     * cache is saved, so the next call with the same words does not need the
+     * generator.
+     * 
+     * @param words
+     *            words to add
+     * @param cache
+     *            pronunciation cache
+     * @param generator
+     *            generator for the words missing in the cache
+     * @return number of words added
+     * @throws IOException
+     *             if the cache can not be saved
+     */
+    public int addWords(Collection<String> words, PronunciationCache cache,
+            PronunciationCache.Generator generator) throws IOException {
+        Collection<String> newWords = new ArrayList<String>();
+        for (String word : words)
+            if (null == decoder.lookupWord(word))
+                newWords.add(word);
+
+        Map<String, String> pronunciations = cache.resolve(newWords, generator);
+        cache.save();
+        return addWords(pronunciations);
+    }
+
+    private synchronized ExecutorService getDetailsExecutor() {
+        if (null == detailsExecutor) {
+            detailsExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "DetailedResult");
+                }
+            });
+        }
+        return detailsExecutor;
+    }
+
+    private SessionTrace createTrace(int timeout) {
+        synchronized (searches) {
+            synchronized (addedWords) {
+                return new SessionTrace(configFile, settings, searches,
+                        addedWords, decoder.getSearch(), timeout,
+                        hasIncrementalListeners());
+            }
+        }
+    }
+
+    /**
+     * Saves the trace once the events posted so far are delivered, they are
+     * recorded on delivery.
+     */
+    private void saveTrace(final SessionTrace trace) {
+        lastTrace = trace;
+        final File dir = traceDir;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                trace.complete();
+                if (null != dir)
+                    writeTrace(trace, dir);
+            }
+        });
+    }
+
+    private void writeTrace(final SessionTrace trace, final File dir) {
+        getDetailsExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                SimpleDateFormat dateFormat =
+                        new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.US);
+                File file = new File(dir, format("trace-%s.bin",
+                        dateFormat.format(new Date())));
+                try {
+                    dir.mkdirs();
+                    trace.write(file);
+                } catch (IOException e) {
+                    Log.e(TAG, format("Failed to write trace %s", file), e);
+                }
+            }
+        });
+    }
+
+    private boolean hasDetailedListeners() {
+        synchronized (listeners) {
+            for (RecognitionListener listener : listeners)
+                if (listener instanceof DetailedResultListener)
+                    return true;
+        }
+        return false;
+    }
+
+    private boolean hasIncrementalListeners() {
+        synchronized (listeners) {
+            for (RecognitionListener listener : listeners)
+                if (listener instanceof IncrementalRecognitionListener)
+                    return true;
+        }
+        return false;
+    }
+
+    /**
+     * Collects words of the current hypothesis from the segment iterator.
+     * Fillers and sentence markers are skipped, alternative pronunciation
+     * suffixes like "(2)" are removed.
+     */
+    private List<WordSegment> getWords() {
+        List<WordSegment> words = new ArrayList<WordSegment>();
+        for (Segment segment : decoder.seg()) {
+            String word = segment.getWord();
+            if (word.startsWith("<") || word.startsWith("[")
+                    || word.startsWith("+"))
+                continue;
+            WordSegment ws = WordSegment.fromSegment(segment);
+            int alt = word.indexOf('(');
+            if (alt > 0)
+                ws = new WordSegment(word.substring(0, alt),
+                        ws.getStartFrame(), ws.getEndFrame(),
+                        ws.getAcousticScore(), ws.getLanguageScore());
+            words.add(ws);
+        }
+        return words;
+    }
+
+    /**
+     * Compresses the lattice and delivers the detailed result. N-best and the
+     * lattice are taken from the decoder on the recognizer thread, the task
+     * does not use the decoder.
+     */
+    private final class DetailedResultTask implements Runnable {
+
+        private final List<DetailedResult.Alternative> nbest;
+        private final File latticeFile;
+
+        /**
+         * @param nbest
+         *            N-best hypotheses
+         * @param latticeFile
+         *            exported lattice, removed by the task, or null
+         */
+        DetailedResultTask(List<DetailedResult.Alternative> nbest, File latticeFile) {
+            this.nbest = nbest;
+            this.latticeFile = latticeFile;
+        }
+
+        @Override
+        public void run() {
+            byte[] lattice = null;
+            if (null != latticeFile) {
+                try {
+                    lattice = compress(latticeFile);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to export lattice", e);
+                } finally {
+                    latticeFile.delete();
+                }
+            }
+
+            mainHandler.post(new DetailedResultEvent(
+                    new DetailedResult(nbest, lattice)));
+        }
+
+        /**
+         * Drops the result of the cancelled utterance.
+         */
+        void discard() {
+            if (null != latticeFile)
+                latticeFile.delete();
+        }
+
+        private byte[] compress(File file) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            OutputStream destination = new GZIPOutputStream(bytes);
+            InputStream source = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[4096];
+                int nread;
+                while ((nread = source.read(buffer)) != -1)
+                    destination.write(buffer, 0, nread);
+            } finally {
+                source.close();
+            }
+            destination.close();
+            return bytes.toByteArray();
+        }
+    }
+
+    private final class RecognizerThread implements Runnable {
+
+        private final Thread thread;
         
         private int remainingSamples;
         private int timeoutSamples;
         private final static int NO_TIMEOUT = -1;
 
-        public RecognizerThread(int timeout) {
+        private final static int STOP_NONE = 0;
+        private final static int STOP_RESULT = 1;
+        private final static int STOP_CANCEL = 2;
+
+        private final RecognizerThread previous;
+        private final String searchName;
+        private final int timeout;
+        private boolean uttStarted;
+        private long processedSamples;
+
+        private SessionTrace trace;
+        private long traceStart;
+        private final CommittedWords committedWords = new CommittedWords();
+
+        private final Object lock = new Object();
+        private int stopMode = STOP_NONE;
+        private boolean finished;
+
+        private Hypothesis hypothesis;
+        private List<WordSegment> finalWords;
+        private DetailedResultTask details;
+        private final FutureTask<Hypothesis> result = new FutureTask<Hypothesis>(
+                new Callable<Hypothesis>() {
+                    @Override
+                    public Hypothesis call() {
+                        return hypothesis;
+                    }
+                });
+
+        /**
+         * @param previous
+         *            thread to wait for before decoding or null
+         * @param searchName
+         *            search to switch to before decoding or null if it is
+         *            already active
+         * @param timeout
+         *            timeout in milliseconds or NO_TIMEOUT
+         */
+        public RecognizerThread(RecognizerThread previous, String searchName, int timeout) {
+            this.thread = threadFactory.newThread(this);
+            this.previous = previous;
+            this.searchName = searchName;
+            this.timeout = timeout;
             if (timeout != NO_TIMEOUT)
                 this.timeoutSamples = timeout * sampleRate / 1000;
             else
@@ -314,39 +905,247 @@ public class SpeechRecognizer {
             this.remainingSamples = this.timeoutSamples;
         }
 
-        public RecognizerThread() {
-            this(NO_TIMEOUT);
+        void start() {
+            thread.start();
+        }
+
+        boolean isAlive() {
+            return thread.isAlive();
+        }
+
+        /**
+         * Asks the thread to stop. On stop the thread still decodes the audio
+         * captured so far, on cancel it drops it. If the thread has already
+         * exited on timeout the utterance is finished on the calling thread.
+         */
+        Future<Hypothesis> requestStop(int mode) {
+            boolean done;
+            synchronized (lock) {
+                done = finished;
+                stopMode = mode;
+            }
+
+            if (done) {
+                finish(mode);
+            } else {
+                if (mode == STOP_CANCEL)
+                    thread.interrupt();
+                input.finish();
+            }
+            return result;
+        }
+
+        private boolean isStopRequested() {
+            synchronized (lock) {
+                return stopMode != STOP_NONE;
+            }
         }
 
         @Override
         public void run() {
+            Process.setThreadPriority(decoderPriority);
+            if (preferPerformanceCores) {
+                int ncores = ThreadAffinity.bindToPerformanceCores();
+                Log.d(TAG, format("Decoding on %d performance cores", ncores));
+            }
+
+            try {
+                recognize();
+            } finally {
+                int mode;
+                synchronized (lock) {
+                    finished = true;
+                    mode = stopMode;
+                }
+                if (mode != STOP_NONE)
+                    finish(mode);
+            }
+        }
+
+        /**
+         * Delivers the final result, the utterance must be ended.
+         */
+        private void finish(int mode) {
+            if (mode == STOP_RESULT) {
+                Log.i(TAG, "Stop recognition");
+                // The last words come before the result, listeners may
+                // change the decoder in onResult
+                if (null != finalWords)
+                    postWords(finalWords);
+                post(new ResultEvent(hypothesis, true));
+                if (null != details)
+                    getDetailsExecutor().submit(details);
+            } else {
+                Log.i(TAG, "Cancel recognition");
+                hypothesis = null;
+                finalWords = null;
+                if (null != details)
+                    details.discard();
+            }
+
+            if (null != trace) {
+                trace.setCancelled(mode == STOP_CANCEL);
+                saveTrace(trace);
+            }
+
+            result.run();
+        }
+
+        /**
+         * Takes the final result from the decoder. The result is delivered
+         * later by {@link #finish}, possibly from another thread, but the
+         * decoder is only used by the recognizer thread while it runs.
+         */
+        private void collectResult() {
+            hypothesis = decoder.hyp();
+            if (hasIncrementalListeners())
+                finalWords = stabilizer.finish(getWords());
+            if ((nbestSize > 0 || latticeEnabled) && hasDetailedListeners())
+                details = new DetailedResultTask(collectNBest(nbestSize),
+                        latticeEnabled ? exportLattice() : null);
+        }
+
+        private List<DetailedResult.Alternative> collectNBest(int size) {
+            List<DetailedResult.Alternative> nbest =
+                    new ArrayList<DetailedResult.Alternative>();
+            if (size == 0)
+                return nbest;
+            for (NBest entry : decoder.nbest()) {
+                if (nbest.size() >= size)
+                    break;
+                if (null != entry.getHypstr())
+                    nbest.add(new DetailedResult.Alternative(
+                            entry.getHypstr(), entry.getScore()));
+            }
+            return nbest;
+        }
 
-            recorder.startRecording();
-            if (recorder.getRecordingState() == AudioRecord.RECORDSTATE_STOPPED) {
-                recorder.stop();
-                IOException ioe = new IOException(
-                        "Failed to start recording. Microphone might be already in use.");
-                mainHandler.post(new OnErrorEvent(ioe));
+        private File exportLattice() {
+            Lattice lattice = decoder.getLattice();
+            if (null == lattice)
+                return null;
+            try {
+                File file = File.createTempFile("lattice", ".lat");
+                lattice.write(file.getPath());
+                return file;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to export lattice", e);
+                return null;
+            }
+        }
+
+        /**
+         * Posts newly committed words with the current tentative ones.
+         */
+        private void postWords(List<WordSegment> committed) {
+            int end = committedWords.add(committed);
+            post(new WordsEvent(committedWords, end, stabilizer.getTentative()));
+        }
+
+        /**
+         * Posts event to the listeners, the event is recorded in the trace
+         * when it is delivered. Events after the trace is truncated are not
+         * recorded.
+         */
+        private void post(RecognitionEvent event) {
+            if (null != trace && !trace.isTruncated())
+                event.setTrace(trace, input.currentTimeMillis() - traceStart,
+                        processedSamples * 1000 / sampleRate);
+            mainHandler.post(event);
+        }
+
+        private void endRecording(SessionAudioRecorder audioRecorder) {
+            if (null == audioRecorder)
                 return;
+            if (input instanceof AudioCaptureHub.Subscription)
+                ((AudioCaptureHub.Subscription) input).setRecorder(null);
+            audioRecorder.endSession();
+        }
+
+        private void recognize() {
+            if (null != previous) {
+                boolean interrupted = false;
+                while (previous.isAlive()) {
+                    try {
+                        previous.thread.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted || isStopRequested())
+                    return;
+            }
+
+            if (null != searchName) {
+                try {
+                    decoder.setSearch(searchName);
+                } catch (RuntimeException e) {
+                    post(new OnErrorEvent(e));
+                    return;
+                }
+                stabilizer.reset();
             }
 
+            // The capture feeds the recorder directly, the decoder may drop
+            // chunks when it falls behind
+            SessionAudioRecorder audioRecorder = sessionRecorder;
+            boolean captureRecording = input instanceof AudioCaptureHub.Subscription;
+            if (null != audioRecorder) {
+                audioRecorder.startSession(sampleRate);
+                if (captureRecording)
+                    ((AudioCaptureHub.Subscription) input).setRecorder(audioRecorder);
+            }
+
+            try {
+                input.start();
+            } catch (IOException e) {
+                endRecording(audioRecorder);
+                post(new OnErrorEvent(e));
+                return;
+            }
+            // Stop could come before the input was started
+            if (isStopRequested())
+                input.finish();
+
             Log.d(TAG, "Starting decoding");
 
             decoder.startUtt();
+            uttStarted = true;
+            if (null != traceDir || tracing) {
+                trace = createTrace(timeout);
+                // The replay records the whole session
+                if (!tracing)
+                    trace.setMaxSamples((long) traceMaxSeconds * sampleRate);
+                traceStart = input.currentTimeMillis();
+            }
             short[] buffer = new short[bufferSize];
             boolean inSpeech = decoder.getInSpeech();
+            boolean readFailed = false;
+            processedSamples = 0;
 
-            // Skip the first buffer, usually zeroes
-            recorder.read(buffer, 0, buffer.length);
-
-            while (!interrupted()
+            while (!Thread.interrupted()
                     && ((timeoutSamples == NO_TIMEOUT) || (remainingSamples > 0))) {
-                int nread = recorder.read(buffer, 0, buffer.length);
+                int nread = input.read(buffer, buffer.length);
+
+                // Stopped and all the captured audio is decoded
+                if (AudioInput.END_OF_STREAM == nread)
+                    break;
 
                 if (-1 == nread) {
-                    throw new RuntimeException("error reading audio buffer");
+                    // Capture failed, end the utterance and report below
+                    readFailed = true;
+                    break;
                 } else if (nread > 0) {
+                    long decodeStart = System.nanoTime();
+                    if (null != trace)
+                        trace.addChunk(input.currentTimeMillis() - traceStart,
+                                buffer, nread);
                     decoder.processRaw(buffer, nread, false, false);
+                    processedSamples += nread;
+
+                    if (null != audioRecorder && !captureRecording
+                            && !audioRecorder.write(buffer, nread))
+                        metrics.addDroppedAudioChunk();
 
                     // int max = 0;
                     // for (int i = 0; i < nread; i++) {
@@ -356,14 +1155,25 @@ public class SpeechRecognizer {
                     
                     if (decoder.getInSpeech() != inSpeech) {
                         inSpeech = decoder.getInSpeech();
-                        mainHandler.post(new InSpeechChangeEvent(inSpeech));
+                        post(new InSpeechChangeEvent(inSpeech));
                     }
 
                     if (inSpeech)
                         remainingSamples = timeoutSamples;
 
                     final Hypothesis hypothesis = decoder.hyp();
-                    mainHandler.post(new ResultEvent(hypothesis, false));
+                    post(new ResultEvent(hypothesis, false));
+
+                    if (hasIncrementalListeners()) {
+                        int frame = (int) (processedSamples * frameRate / sampleRate);
+                        List<WordSegment> committed =
+                                stabilizer.update(getWords(), frame);
+                        if (!committed.isEmpty() || stabilizer.tentativeChanged())
+                            postWords(committed);
+                    }
+
+                    metrics.addDecodedChunk(System.nanoTime() - decodeStart,
+                            nread * 1000000000L / sampleRate);
                 }
 
                 if (timeoutSamples != NO_TIMEOUT) {
@@ -371,27 +1181,63 @@ public class SpeechRecognizer {
                 }
             }
 
-            recorder.stop();
+            input.stop();
             decoder.endUtt();
+            endRecording(audioRecorder);
+            collectResult();
 
             // Remove all pending notifications.
             mainHandler.removeCallbacksAndMessages(null);
 
+            if (readFailed) {
+                post(new OnErrorEvent(new IOException("error reading audio buffer")));
+                return;
+            }
+
             // If we met timeout signal that speech ended
             if (timeoutSamples != NO_TIMEOUT && remainingSamples <= 0) {
-                mainHandler.post(new TimeoutEvent());
+                post(new TimeoutEvent());
             }
         }
     }
 
     private abstract class RecognitionEvent implements Runnable {
+        private SessionTrace trace;
+        private long time;
+        private long audioTime;
+
         public void run() {
             RecognitionListener[] emptyArray = new RecognitionListener[0];
             for (RecognitionListener listener : listeners.toArray(emptyArray))
                 execute(listener);
+
+            if (null != trace && null != getTraceType())
+                trace.addEvent(time, audioTime, getTraceType(), getTraceText());
         }
 
         protected abstract void execute(RecognitionListener listener);
+
+        /**
+         * Records the event in the trace on delivery with the timestamps of
+         * posting.
+         */
+        void setTrace(SessionTrace trace, long time, long audioTime) {
+            this.trace = trace;
+            this.time = time;
+            this.audioTime = audioTime;
+        }
+
+        /**
+         * Returns event type for the session trace or null if the event is
+         * not traced.
+         */
+        String getTraceType() {
+            return null;
+        }
+
+        String getTraceText() {
+            return null;
+        }
     }
 
     private class InSpeechChangeEvent extends RecognitionEvent {
@@ -408,6 +1254,11 @@ public class SpeechRecognizer {
             else
                 listener.onEndOfSpeech();
         }
+
+        @Override
+        String getTraceType() {
+            return state ? SessionTrace.BEGINNING_OF_SPEECH : SessionTrace.END_OF_SPEECH;
+        }
     }
 
     private class ResultEvent extends RecognitionEvent {
@@ -426,6 +1277,104 @@ public class SpeechRecognizer {
             else
                 listener.onPartialResult(hypothesis);
         }
+
+        @Override
+        String getTraceType() {
+            return finalResult ? SessionTrace.RESULT : SessionTrace.PARTIAL_RESULT;
+        }
+
+        @Override
+        String getTraceText() {
+            return null == hypothesis ? null : hypothesis.getHypstr();
+        }
+    }
+
+    /**
+     * Words committed during the utterance. Events carrying the words can be
+     * removed from the main thread queue before delivery when the utterance
+     * ends, so every delivered event hands out all the words up to its own
+     * ones which were not delivered yet.
+     */
+    private static final class CommittedWords {
+        private final List<WordSegment> words = new ArrayList<WordSegment>();
+        private int delivered;
+
+        /**
+         * Appends words and returns the new number of committed words.
+         */
+        synchronized int add(List<WordSegment> committed) {
+            words.addAll(committed);
+            return words.size();
+        }
+
+        /**
+         * Returns the words not delivered yet up to the given position.
+         */
+        synchronized List<WordSegment> deliver(int end) {
+            if (end <= delivered)
+                return Collections.emptyList();
+            List<WordSegment> result =
+                    new ArrayList<WordSegment>(words.subList(delivered, end));
+            delivered = end;
+            return result;
+        }
+    }
+
+    private class WordsEvent extends RecognitionEvent {
+        private final CommittedWords words;
+        private final int end;
+        private final List<WordSegment> tentative;
+        private List<WordSegment> delivered;
+
+        WordsEvent(CommittedWords words, int end, List<WordSegment> tentative) {
+            this.words = words;
+            this.end = end;
+            this.tentative = tentative;
+        }
+
+        @Override
+        public void run() {
+            delivered = words.deliver(end);
+            super.run();
+        }
+
+        @Override
+        protected void execute(RecognitionListener listener) {
+            if (!(listener instanceof IncrementalRecognitionListener))
+                return;
+            IncrementalRecognitionListener incremental =
+                    (IncrementalRecognitionListener) listener;
+            if (!delivered.isEmpty())
+                incremental.onWordsCommitted(delivered);
+            incremental.onTentativeWords(tentative);
+        }
+
+        @Override
+        String getTraceType() {
+            return delivered.isEmpty() ? null : SessionTrace.WORDS_COMMITTED;
+        }
+
+        @Override
+        String getTraceText() {
+            StringBuilder text = new StringBuilder();
+            for (WordSegment word : delivered)
+                text.append(text.length() > 0 ? " " : "").append(word.getWord());
+            return text.toString();
+        }
+    }
+
+    private class DetailedResultEvent extends RecognitionEvent {
+        private final DetailedResult result;
+
+        DetailedResultEvent(DetailedResult result) {
+            this.result = result;
+        }
+
+        @Override
+        protected void execute(RecognitionListener listener) {
+            if (listener instanceof DetailedResultListener)
+                ((DetailedResultListener) listener).onDetailedResult(result);
+        }
     }
 
     private class OnErrorEvent extends RecognitionEvent {
@@ -439,6 +1388,16 @@ public class SpeechRecognizer {
         protected void execute(RecognitionListener listener) {
             listener.onError(exception);
         }
+
+        @Override
+        String getTraceType() {
+            return SessionTrace.ERROR;
+        }
+
+        @Override
+        String getTraceText() {
+            return exception.toString();
+        }
     }
 
     private class TimeoutEvent extends RecognitionEvent {
@@ -446,5 +1405,10 @@ public class SpeechRecognizer {
         protected void execute(RecognitionListener listener) {
             listener.onTimeout();
         }
+
+        @Override
+        String getTraceType() {
+            return SessionTrace.TIMEOUT;
+        }
     }
 }
@@ -35,6 +35,11 @@ import static edu.cmu.pocketsphinx.Decoder.fileConfig;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Process;
 
 /**
  * Wrapper for the decoder configuration to implement builder pattern.
@@ -47,12 +52,23 @@ public class SpeechRecognizerSetup {
     }
 
     private final Config config;
+    private final String configFile;
+    private final Map<String, Object> settings = new LinkedHashMap<String, Object>();
+
+    private File calibrationFile;
+    private File calibrationFixture;
+    private File calibrationModel;
+    private float targetRtf;
+
+    private ThreadFactory threadFactory;
+    private int decoderPriority = Process.THREAD_PRIORITY_DEFAULT;
+    private boolean preferPerformanceCores;
 
     /**
      * Creates new speech recognizer builder with default configuration.
      */
     public static SpeechRecognizerSetup defaultSetup() {
-        return new SpeechRecognizerSetup(defaultConfig());
+        return new SpeechRecognizerSetup(defaultConfig(), null);
     }
 
     /**
@@ -63,15 +79,45 @@ public class SpeechRecognizerSetup {
      *            configuration file
      */
     public static SpeechRecognizerSetup setupFromFile(File configFile) {
-        return new SpeechRecognizerSetup(fileConfig(configFile.getPath()));
+        return new SpeechRecognizerSetup(fileConfig(configFile.getPath()),
+                configFile.getPath());
     }
 
-    private SpeechRecognizerSetup(Config config) {
+    private SpeechRecognizerSetup(Config config, String configFile) {
         this.config = config;
+        this.configFile = configFile;
     }
 
     public SpeechRecognizer getRecognizer() throws IOException {
-        return new SpeechRecognizer(config);
+        return getRecognizer((AudioInput) null);
+    }
+
+    /**
+     * Creates recognizer which reads audio from the shared capture hub
+     * instead of opening the microphone itself.
+     * 
+     * @param hub
+     *            capture hub with the same sample rate as the decoder
+     */
+    public SpeechRecognizer getRecognizer(AudioCaptureHub hub) throws IOException {
+        if (hub.getSampleRate() != (int) config.getFloat("-samprate"))
+            throw new IllegalArgumentException(
+                    "Capture hub sample rate does not match the decoder sample rate");
+        return getRecognizer(hub.subscribe());
+    }
+
+    /**
+     * Creates recognizer with the given input, the default microphone input
+     * is used if it is null.
+     */
+    SpeechRecognizer getRecognizer(AudioInput input) throws IOException {
+        if (null != calibrationFile)
+            applyCalibration();
+        SpeechRecognizer recognizer = new SpeechRecognizer(config, input, threadFactory);
+        recognizer.setSettings(configFile, settings);
+        recognizer.setDecoderPriority(decoderPriority);
+        recognizer.setPreferPerformanceCores(preferPerformanceCores);
+        return recognizer;
     }
 
     public SpeechRecognizerSetup setAcousticModel(File model) {
@@ -86,6 +132,11 @@ public class SpeechRecognizerSetup {
         return setFloat("-samprate", rate);
     }
 
+    /**
+     * Enables decoder raw audio logging. The data is written uncompressed
+     * from the decoding thread, consider {@link SessionAudioRecorder} for
+     * collecting audio in production.
+     */
     public SpeechRecognizerSetup setRawLogDir(File dir) {
         return setString("-rawlogdir", dir.getPath());
     }
@@ -94,23 +145,139 @@ public class SpeechRecognizerSetup {
         return setFloat("-kws_threshold", threshold);
     }
 
+    /**
+     * Enables memory mapping of the binary model files, the model definition
+     * and the mixture weights. Mapped pages are shared between processes and
+     * can be dropped by the system under memory pressure, while read files
+     * are copied into the private native heap. Mapping is on by default in
+     * the decoder, files in the byte order other than the native one are
+     * read anyway.
+     * 
+     * @see MemoryBenchmark
+     */
+    public SpeechRecognizerSetup setMemoryMappedModels(boolean enabled) {
+        return setBoolean("-mmap", enabled);
+    }
+
+    /**
+     * Sets the factory for the audio capture and decoding threads, for
+     * example to name the threads or to control their placement. Thread
+     * priorities are set by the recognizer when the threads start.
+     */
+    public SpeechRecognizerSetup setThreadFactory(ThreadFactory factory) {
+        threadFactory = factory;
+        return this;
+    }
+
+    /**
+     * Sets priority of the decoding thread, one of the
+     * android.os.Process.THREAD_PRIORITY_* values. The audio capture thread
+     * always runs with THREAD_PRIORITY_URGENT_AUDIO.
+     */
+    public SpeechRecognizerSetup setDecoderThreadPriority(int priority) {
+        decoderPriority = priority;
+        return this;
+    }
+
+    /**
+     * Asks to run decoding on the performance cores of big.LITTLE devices,
+     * that is on every core except the slowest cluster. This is a hint, it
+     * has no effect on devices with identical cores.
+     * 
+     * @see SchedulingBenchmark
+     */
+    public SpeechRecognizerSetup setPreferPerformanceCores(boolean prefer) {
+        preferPerformanceCores = prefer;
+        return this;
+    }
+
+    /**
+     * Sets decoder speed and accuracy parameters from the profile.
+     */
+    public SpeechRecognizerSetup setProfile(DecoderProfile profile) {
+        profile.apply(this);
+        return this;
+    }
+
+    /**
+     * Enables automatic choice of the decoder profile. On the first call of
+     * {@link #getRecognizer} the fixture is decoded with every profile and the
+     * most accurate one which meets the target real-time factor is stored in
+     * the calibration file. Later builds apply the stored profile without
+     * decoding. The profile overrides the beams, -ds, -topn, -maxhmmpf and
+     * -maxwpf values set before.
+     * 
+     * @param calibrationFile
+     *            file to store the chosen profile in
+     * @param fixture
+     *            raw 16-bit little-endian audio at the configured sample rate
+     * @param languageModel
+     *            N-gram model for the fixture or null to use the search
+     *            defined by the configuration or a phone loop
+     * @param targetRtf
+     *            required real-time factor
+     * @see DeviceCalibration
+     */
+    public SpeechRecognizerSetup setAutoTuning(File calibrationFile,
+            File fixture, File languageModel, float targetRtf) {
+        this.calibrationFile = calibrationFile;
+        this.calibrationFixture = fixture;
+        this.calibrationModel = languageModel;
+        this.targetRtf = targetRtf;
+        return this;
+    }
+
+    /**
+     * Runs calibration again, for example after the acoustic model update,
+     * stores and applies the new profile. Takes several seconds.
+     * 
+     * @throws IOException
+     *             if the fixture can not be read or the result can not be
+     *             stored
+     * @throws IllegalStateException
+     *             if auto tuning is not enabled
+     */
+    public DeviceCalibration recalibrate() throws IOException {
+        if (null == calibrationFile)
+            throw new IllegalStateException("auto tuning is not enabled");
+
+        DeviceCalibration calibration = DeviceCalibration.calibrate(
+                config, calibrationFixture, calibrationModel, targetRtf);
+        calibration.save(calibrationFile);
+        calibration.getProfile().apply(this);
+        return calibration;
+    }
+
+    private void applyCalibration() throws IOException {
+        DeviceCalibration calibration = DeviceCalibration.load(calibrationFile);
+        if (null == calibration
+                || calibration.getTargetRealTimeFactor() != targetRtf)
+            recalibrate();
+        else
+            calibration.getProfile().apply(this);
+    }
+
     public SpeechRecognizerSetup setBoolean(String key, boolean value) {
         config.setBoolean(key, value);
+        settings.put(key, value);
         return this;
     }
 
     public SpeechRecognizerSetup setInteger(String key, int value) {
         config.setInt(key, value);
+        settings.put(key, value);
         return this;
     }
 
     public SpeechRecognizerSetup setFloat(String key, double value) {
         config.setFloat(key, value);
+        settings.put(key, value);
         return this;
     }
 
     public SpeechRecognizerSetup setString(String key, String value) {
         config.setString(key, value);
+        settings.put(key, value);
         return this;
     }
 }
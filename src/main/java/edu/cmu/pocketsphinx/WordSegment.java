@@ -0,0 +1,104 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+/**
+ * Single word of the recognition result with its time alignment. Unlike
+ * {@link Segment} this is a plain Java object which does not hold any native
+ * memory, so it can be kept by listeners for as long as they need.
+ */
+public class WordSegment {
+
+    private final String word;
+    private final int startFrame;
+    private final int endFrame;
+    private final int ascore;
+    private final int lscore;
+
+    public WordSegment(String word, int startFrame, int endFrame,
+            int ascore, int lscore) {
+        this.word = word;
+        this.startFrame = startFrame;
+        this.endFrame = endFrame;
+        this.ascore = ascore;
+        this.lscore = lscore;
+    }
+
+    static WordSegment fromSegment(Segment segment) {
+        return new WordSegment(segment.getWord(),
+                segment.getStartFrame(), segment.getEndFrame(),
+                segment.getAscore(), segment.getLscore());
+    }
+
+    public String getWord() {
+        return word;
+    }
+
+    /**
+     * Returns first frame of the word, frames are counted from the start of
+     * utterance.
+     */
+    public int getStartFrame() {
+        return startFrame;
+    }
+
+    /**
+     * Returns last frame of the word, inclusive.
+     */
+    public int getEndFrame() {
+        return endFrame;
+    }
+
+    public int getAcousticScore() {
+        return ascore;
+    }
+
+    public int getLanguageScore() {
+        return lscore;
+    }
+
+    /**
+     * Returns total path score of the word, sum of acoustic and language
+     * scores in log domain.
+     */
+    public int getScore() {
+        return ascore + lscore;
+    }
+
+    boolean sameAs(WordSegment other) {
+        return word.equals(other.word) && startFrame == other.startFrame;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [%d:%d]", word, startFrame, endFrame);
+    }
+}
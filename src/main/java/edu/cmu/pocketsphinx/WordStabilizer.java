@@ -0,0 +1,161 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tracks consecutive partial hypotheses and decides which words are stable.
+ * A word is committed once the hypothesis prefix up to this word has not
+ * changed for a number of updates and the word ended far enough behind the
+ * current frame. Committed words are never reported again, later hypotheses
+ * are only matched against the words which start after the last committed
+ * one, so a revision of already committed words by the decoder is not
+ * detected.
+ */
+class WordStabilizer {
+
+    private final int minAgreement;
+    private final int lagFrames;
+
+    private List<WordSegment> pending = Collections.emptyList();
+    private int[] agreement = new int[0];
+    private int committedEnd = -1;
+    private boolean tentativeChanged;
+
+    /**
+     * @param minAgreement
+     *            number of consecutive updates the word must survive
+     * @param lagFrames
+     *            number of frames between the end of the word and the
+     *            current frame before it can be committed
+     */
+    WordStabilizer(int minAgreement, int lagFrames) {
+        this.minAgreement = minAgreement;
+        this.lagFrames = lagFrames;
+    }
+
+    void reset() {
+        pending = Collections.emptyList();
+        agreement = new int[0];
+        committedEnd = -1;
+        tentativeChanged = false;
+    }
+
+    /**
+     * Updates state with the new partial hypothesis.
+     *
+     * @return newly committed words, possibly empty
+     */
+    List<WordSegment> update(List<WordSegment> words, int currentFrame) {
+        List<WordSegment> current = uncommitted(words);
+
+        int common = 0;
+        while (common < current.size() && common < pending.size()
+                && current.get(common).sameAs(pending.get(common)))
+            common++;
+
+        int[] counts = new int[current.size()];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = i < common ? agreement[i] + 1 : 1;
+
+        int ncommit = 0;
+        while (ncommit < current.size()
+                && counts[ncommit] >= minAgreement
+                && current.get(ncommit).getEndFrame() <= currentFrame - lagFrames)
+            ncommit++;
+
+        List<WordSegment> committed = commit(current, ncommit);
+        List<WordSegment> tail = current.subList(ncommit, current.size());
+        int[] tailCounts = new int[tail.size()];
+        System.arraycopy(counts, ncommit, tailCounts, 0, tailCounts.length);
+
+        tentativeChanged = ncommit > 0 || !sameWords(tail, pending);
+        pending = new ArrayList<WordSegment>(tail);
+        agreement = tailCounts;
+        return committed;
+    }
+
+    /**
+     * Commits all words of the final hypothesis which start after the last
+     * committed one. Final words overlapping the committed ones are skipped
+     * even if they differ.
+     *
+     * @return newly committed words, possibly empty
+     */
+    List<WordSegment> finish(List<WordSegment> words) {
+        List<WordSegment> current = uncommitted(words);
+        List<WordSegment> committed = commit(current, current.size());
+        tentativeChanged = !pending.isEmpty();
+        pending = Collections.emptyList();
+        agreement = new int[0];
+        return committed;
+    }
+
+    /**
+     * Returns true if the tentative words changed during the last update.
+     */
+    boolean tentativeChanged() {
+        return tentativeChanged;
+    }
+
+    List<WordSegment> getTentative() {
+        return Collections.unmodifiableList(pending);
+    }
+
+    private List<WordSegment> uncommitted(List<WordSegment> words) {
+        int first = 0;
+        while (first < words.size()
+                && words.get(first).getStartFrame() <= committedEnd)
+            first++;
+        return words.subList(first, words.size());
+    }
+
+    private List<WordSegment> commit(List<WordSegment> words, int count) {
+        if (count == 0)
+            return Collections.emptyList();
+        committedEnd = words.get(count - 1).getEndFrame();
+        return new ArrayList<WordSegment>(words.subList(0, count));
+    }
+
+    private static boolean sameWords(List<WordSegment> a, List<WordSegment> b) {
+        if (a.size() != b.size())
+            return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (!a.get(i).sameAs(b.get(i))
+                    || a.get(i).getEndFrame() != b.get(i).getEndFrame())
+                return false;
+        }
+        return true;
+    }
+}
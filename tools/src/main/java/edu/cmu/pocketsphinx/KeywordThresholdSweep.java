@@ -0,0 +1,576 @@
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Offline tuning tool for keyword spotting thresholds. Decodes a labeled
+ * corpus with every keyphrase under a grid of thresholds and reports the
+ * detection and false alarm rates of every phrase together with the decoding
+ * cost of every threshold.
+ * 
+ * The corpus is a text file with one utterance per line, the path to raw
+ * 16-bit little-endian mono audio and the transcription separated by a tab:
+ * <br/>
+ * <code>
+ * audio/0001.raw	oh mighty computer turn on the light
+ * </code>
+ * <br/>
+ * Relative paths are resolved against the directory of the corpus file.
+ * 
+ * Utterances are decoded in parallel, every worker thread owns a decoder with
+ * one keyword search per threshold. The tool does not depend on Android and
+ * runs on the desktop JVM with the host build of the pocketsphinx_jni
+ * library, see {@link #main(String[])}. It is not part of the Android
+ * library and is compiled separately with the host Java bindings.
+ * 
+ * Detections are not aligned in time with the transcription, they are only
+ * counted per utterance. Detections up to the number of occurrences of the
+ * phrase in the utterance are hits and the rest are false alarms, so a miss
+ * and a false alarm in the same utterance count as a hit. Use short
+ * utterances to keep the error small.
+ */
+public class KeywordThresholdSweep {
+
+    private static final String SEARCH_PREFIX = "sweep-";
+
+    /** Default grid, every 5 decades from 1e-50 to 1e-5. */
+    private static final double[] DEFAULT_THRESHOLDS = {
+        1e-50, 1e-45, 1e-40, 1e-35, 1e-30, 1e-25, 1e-20, 1e-15, 1e-10, 1e-5
+    };
+
+    private final Config config;
+    private double[] thresholds = DEFAULT_THRESHOLDS;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private double maxFalseAlarmsPerHour = 1.0;
+
+    /**
+     * Creates the sweep.
+     * 
+     * @param config
+     *            decoder configuration with the acoustic model and the
+     *            dictionary, it must not be modified while the sweep runs
+     */
+    public KeywordThresholdSweep(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Sets the thresholds to try.
+     */
+    public KeywordThresholdSweep setThresholds(double... thresholds) {
+        if (thresholds.length == 0)
+            throw new IllegalArgumentException("no thresholds");
+        this.thresholds = thresholds.clone();
+        Arrays.sort(this.thresholds);
+        return this;
+    }
+
+    /**
+     * Sets the number of decoding threads, by default one per core.
+     */
+    public KeywordThresholdSweep setWorkers(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("workers must be positive");
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * Sets the false alarm rate a recommended threshold must not exceed.
+     */
+    public KeywordThresholdSweep setMaxFalseAlarmsPerHour(double rate) {
+        this.maxFalseAlarmsPerHour = rate;
+        return this;
+    }
+
+    /**
+     * Decodes the corpus. Blocks until every utterance is decoded with every
+     * threshold.
+     * 
+     * @param corpus
+     *            corpus file, see the class description
+     * @param keyphrases
+     *            phrases to spot, thresholds in the kws file format are
+     *            ignored
+     * @throws IOException
+     *             if the corpus or audio files can not be read
+     */
+    public Result sweep(File corpus, List<String> keyphrases)
+            throws IOException, InterruptedException {
+        final List<String> phrases = new ArrayList<String>();
+        for (String keyphrase : keyphrases) {
+            String phrase = normalize(stripThreshold(keyphrase));
+            if (!phrase.isEmpty() && !phrases.contains(phrase))
+                phrases.add(phrase);
+        }
+        if (phrases.isEmpty())
+            throw new IllegalArgumentException("no keyphrases");
+
+        final List<Utterance> utterances = readCorpus(corpus, phrases);
+        if (utterances.isEmpty())
+            throw new IOException(format("corpus %s is empty", corpus));
+        final int sampleRate = (int) config.getFloat("-samprate");
+        final Result result = new Result(thresholds, phrases, maxFalseAlarmsPerHour);
+        for (Utterance utterance : utterances) {
+            result.addExpected(utterance.expected);
+            result.duration += (double) utterance.audio.length() / 2 / sampleRate;
+        }
+
+        List<File> searchFiles = new ArrayList<File>();
+        List<Decoder> decoders = new ArrayList<Decoder>();
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            for (double threshold : thresholds)
+                searchFiles.add(writeKeywordFile(phrases, threshold));
+
+            // Decoders are created here since model loading writes into the
+            // shared configuration
+            for (int i = 0; i < Math.min(workers, utterances.size()); i++) {
+                Decoder decoder = new Decoder(config);
+                for (int t = 0; t < thresholds.length; t++)
+                    decoder.setKws(SEARCH_PREFIX + t, searchFiles.get(t).getPath());
+                decoders.add(decoder);
+            }
+
+            final AtomicInteger next = new AtomicInteger();
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (final Decoder decoder : decoders) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() throws IOException {
+                        Result partial = new Result(thresholds, phrases,
+                                maxFalseAlarmsPerHour);
+                        for (int i = next.getAndIncrement(); i < utterances.size();
+                                i = next.getAndIncrement())
+                            decode(decoder, utterances.get(i), phrases, partial);
+                        return partial;
+                    }
+                }));
+            }
+            for (Future<Result> future : futures)
+                result.merge(future.get());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            for (Decoder decoder : decoders)
+                decoder.delete();
+            for (File file : searchFiles)
+                file.delete();
+        }
+        return result;
+    }
+
+    private void decode(Decoder decoder, Utterance utterance,
+            List<String> phrases, Result result) throws IOException {
+        short[] audio = readRaw(utterance.audio);
+        int[] detected = new int[phrases.size()];
+
+        for (int t = 0; t < thresholds.length; t++) {
+            long start = System.nanoTime();
+            decoder.setSearch(SEARCH_PREFIX + t);
+            decoder.startUtt();
+            decoder.processRaw(audio, audio.length, false, true);
+            decoder.endUtt();
+            long nanos = System.nanoTime() - start;
+
+            Arrays.fill(detected, 0);
+            for (Segment segment : decoder.seg()) {
+                int p = phrases.indexOf(normalize(segment.getWord()));
+                if (p >= 0)
+                    detected[p]++;
+            }
+            result.addDetections(t, utterance.expected, detected, nanos);
+        }
+    }
+
+    private static File writeKeywordFile(List<String> phrases, double threshold)
+            throws IOException {
+        File file = File.createTempFile("sweep", ".kws");
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(file), "UTF-8"));
+        try {
+            for (String phrase : phrases)
+                writer.println(format(Locale.US, "%s /%s/", phrase, threshold));
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError())
+            throw new IOException(format("failed to write %s", file));
+        return file;
+    }
+
+    private static List<Utterance> readCorpus(File corpus, List<String> phrases)
+            throws IOException {
+        List<Utterance> utterances = new ArrayList<Utterance>();
+        for (String line : readLines(corpus)) {
+            if (line.trim().isEmpty() || line.startsWith("#"))
+                continue;
+
+            int tab = line.indexOf('\t');
+            if (tab < 0)
+                throw new IOException(format("no transcription in %s: %s", corpus, line));
+            File audio = new File(line.substring(0, tab));
+            if (!audio.isAbsolute())
+                audio = new File(corpus.getAbsoluteFile().getParentFile(), audio.getPath());
+
+            List<String> words = Arrays.asList(
+                    normalize(line.substring(tab + 1)).split(" "));
+            int[] expected = new int[phrases.size()];
+            for (int p = 0; p < phrases.size(); p++)
+                expected[p] = countOccurrences(words,
+                        Arrays.asList(phrases.get(p).split(" ")));
+            utterances.add(new Utterance(audio, expected));
+        }
+        return utterances;
+    }
+
+    private static int countOccurrences(List<String> words, List<String> phrase) {
+        int count = 0;
+        for (int i = 0; i + phrase.size() <= words.size();) {
+            if (words.subList(i, i + phrase.size()).equals(phrase)) {
+                count++;
+                i += phrase.size();
+            } else {
+                i++;
+            }
+        }
+        return count;
+    }
+
+    private static String stripThreshold(String keyphrase) {
+        int slash = keyphrase.indexOf('/');
+        return slash < 0 ? keyphrase : keyphrase.substring(0, slash);
+    }
+
+    private static String normalize(String text) {
+        return text.trim().replaceAll("\\s+", " ").toLowerCase(Locale.US);
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while (null != (line = reader.readLine()))
+                lines.add(line);
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private static short[] readRaw(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream source = new DataInputStream(new FileInputStream(file));
+        try {
+            source.readFully(bytes);
+        } finally {
+            source.close();
+        }
+        short[] audio = new short[bytes.length / 2];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(audio);
+        return audio;
+    }
+
+    private static final class Utterance {
+        final File audio;
+        final int[] expected;
+
+        Utterance(File audio, int[] expected) {
+            this.audio = audio;
+            this.expected = expected;
+        }
+    }
+
+    /**
+     * Detection counts for every threshold and keyphrase.
+     */
+    public static class Result {
+        private final double[] thresholds;
+        private final List<String> phrases;
+        private final double maxFalseAlarmsPerHour;
+        private final int[] expected;
+        private final int[][] hits;
+        private final int[][] falseAlarms;
+        private final long[] decodeNanos;
+        private double duration;
+
+        Result(double[] thresholds, List<String> phrases, double maxFalseAlarmsPerHour) {
+            this.thresholds = thresholds;
+            this.phrases = phrases;
+            this.maxFalseAlarmsPerHour = maxFalseAlarmsPerHour;
+            expected = new int[phrases.size()];
+            hits = new int[thresholds.length][phrases.size()];
+            falseAlarms = new int[thresholds.length][phrases.size()];
+            decodeNanos = new long[thresholds.length];
+        }
+
+        void addExpected(int[] counts) {
+            for (int p = 0; p < counts.length; p++)
+                expected[p] += counts[p];
+        }
+
+        void addDetections(int t, int[] expected, int[] detected, long nanos) {
+            for (int p = 0; p < detected.length; p++) {
+                hits[t][p] += Math.min(expected[p], detected[p]);
+                falseAlarms[t][p] += Math.max(0, detected[p] - expected[p]);
+            }
+            decodeNanos[t] += nanos;
+        }
+
+        void merge(Result other) {
+            for (int t = 0; t < thresholds.length; t++) {
+                for (int p = 0; p < phrases.size(); p++) {
+                    hits[t][p] += other.hits[t][p];
+                    falseAlarms[t][p] += other.falseAlarms[t][p];
+                }
+                decodeNanos[t] += other.decodeNanos[t];
+            }
+        }
+
+        public List<String> getKeyphrases() {
+            return Collections.unmodifiableList(phrases);
+        }
+
+        /**
+         * Returns thresholds in ascending order.
+         */
+        public double[] getThresholds() {
+            return thresholds.clone();
+        }
+
+        /**
+         * Returns duration of the corpus in seconds.
+         */
+        public double getDuration() {
+            return duration;
+        }
+
+        /**
+         * Returns fraction of the occurrences of the phrase which were
+         * detected with the given threshold or NaN if the corpus does not
+         * contain the phrase.
+         */
+        public double getDetectionRate(int threshold, String phrase) {
+            int p = indexOf(phrase);
+            return expected[p] == 0 ? Double.NaN : (double) hits[threshold][p] / expected[p];
+        }
+
+        public double getFalseAlarmsPerHour(int threshold, String phrase) {
+            return falseAlarms[threshold][indexOf(phrase)] * 3600 / duration;
+        }
+
+        /**
+         * Returns real-time factor of decoding the corpus with the given
+         * threshold on a single core.
+         */
+        public double getRealTimeFactor(int threshold) {
+            return decodeNanos[threshold] / 1e9 / duration;
+        }
+
+        /**
+         * Returns the threshold with the best detection rate among the ones
+         * which stay within the false alarm limit, preferring the higher
+         * threshold on ties. If no threshold stays within the limit the one
+         * with the fewest false alarms is returned.
+         */
+        public double getRecommendedThreshold(String phrase) {
+            int p = indexOf(phrase);
+            int best = -1;
+            int quietest = thresholds.length - 1;
+            for (int t = 0; t < thresholds.length; t++) {
+                if (falseAlarms[t][p] < falseAlarms[quietest][p])
+                    quietest = t;
+                if (getFalseAlarmsPerHour(t, phrase) > maxFalseAlarmsPerHour)
+                    continue;
+                if (best < 0 || hits[t][p] >= hits[best][p])
+                    best = t;
+            }
+            return thresholds[best < 0 ? quietest : best];
+        }
+
+        /**
+         * Writes detection and false alarm curves as CSV, one row per
+         * threshold and phrase. The first line is a comment starting with #
+         * about the per utterance counting.
+         */
+        public void writeCurves(Writer destination) throws IOException {
+            PrintWriter writer = new PrintWriter(destination);
+            writer.println("# hits and false alarms are counted per utterance,"
+                    + " a miss and a false alarm in one utterance count as a hit");
+            writer.println("threshold,keyphrase,expected,hits,misses,false_alarms,"
+                    + "detection_rate,false_alarms_per_hour,rtf");
+            for (int t = 0; t < thresholds.length; t++) {
+                for (int p = 0; p < phrases.size(); p++) {
+                    String phrase = phrases.get(p);
+                    writer.println(format(Locale.US, "%s,\"%s\",%d,%d,%d,%d,%.4f,%.3f,%.4f",
+                            thresholds[t], phrase, expected[p], hits[t][p],
+                            expected[p] - hits[t][p], falseAlarms[t][p],
+                            getDetectionRate(t, phrase),
+                            getFalseAlarmsPerHour(t, phrase),
+                            getRealTimeFactor(t)));
+                }
+            }
+            writer.flush();
+            if (writer.checkError())
+                throw new IOException("failed to write curves");
+        }
+
+        /**
+         * Writes a keyword file for
+         * {@code SpeechRecognizer.addKeywordSearch(String, File)} with the
+         * recommended threshold of every phrase.
+         */
+        public void writeKeywordFile(Writer destination) throws IOException {
+            PrintWriter writer = new PrintWriter(destination);
+            for (String phrase : phrases)
+                writer.println(format(Locale.US, "%s /%s/", phrase,
+                        getRecommendedThreshold(phrase)));
+            writer.flush();
+            if (writer.checkError())
+                throw new IOException("failed to write keyword file");
+        }
+
+        private int indexOf(String phrase) {
+            int p = phrases.indexOf(normalize(phrase));
+            if (p < 0)
+                throw new IllegalArgumentException(format("unknown keyphrase %s", phrase));
+            return p;
+        }
+    }
+
+    /**
+     * Runs the sweep from the command line:
+     * <br/>
+     * <code>
+     * java -Djava.library.path=... edu.cmu.pocketsphinx.KeywordThresholdSweep
+     *     -hmm en-us -dict cmudict.dict -keyphrases phrases.txt
+     *     -corpus corpus.txt [-thresholds 1e-40,1e-30,1e-20] [-workers 4]
+     *     [-max_fa 1.0] [-samprate 16000] [-output result.kws]
+     * </code>
+     * <br/>
+     * Curves are printed to the standard output as CSV, the recommended
+     * thresholds are written as a keyword file.
+     */
+    public static void main(String[] args) throws Exception {
+        System.loadLibrary("pocketsphinx_jni");
+
+        Config config = Decoder.defaultConfig();
+        config.setString("-logfn", "/dev/null");
+        KeywordThresholdSweep sweep = new KeywordThresholdSweep(config);
+        File corpus = null;
+        File keyphrases = null;
+        File output = null;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String name = args[i];
+            String value = args[i + 1];
+            if ("-hmm".equals(name) || "-dict".equals(name)) {
+                config.setString(name, value);
+            } else if ("-samprate".equals(name)) {
+                config.setFloat(name, Double.parseDouble(value));
+            } else if ("-corpus".equals(name)) {
+                corpus = new File(value);
+            } else if ("-keyphrases".equals(name)) {
+                keyphrases = new File(value);
+            } else if ("-output".equals(name)) {
+                output = new File(value);
+            } else if ("-workers".equals(name)) {
+                sweep.setWorkers(Integer.parseInt(value));
+            } else if ("-max_fa".equals(name)) {
+                sweep.setMaxFalseAlarmsPerHour(Double.parseDouble(value));
+            } else if ("-thresholds".equals(name)) {
+                String[] values = value.split(",");
+                double[] thresholds = new double[values.length];
+                for (int t = 0; t < values.length; t++)
+                    thresholds[t] = Double.parseDouble(values[t]);
+                sweep.setThresholds(thresholds);
+            } else {
+                throw new IllegalArgumentException(format("unknown option %s", name));
+            }
+        }
+        if (null == corpus || null == keyphrases) {
+            System.err.println("usage: KeywordThresholdSweep -hmm <dir> -dict <file>"
+                    + " -keyphrases <file> -corpus <file> [-thresholds <t1,t2,...>]"
+                    + " [-workers <n>] [-max_fa <rate>] [-samprate <rate>]"
+                    + " [-output <file>]");
+            System.exit(1);
+        }
+
+        Result result = sweep.sweep(corpus, readLines(keyphrases));
+        Writer stdout = new OutputStreamWriter(System.out, "UTF-8");
+        result.writeCurves(stdout);
+
+        System.err.println(format(Locale.US, "Corpus duration %.1f s", result.getDuration()));
+        for (String phrase : result.getKeyphrases())
+            System.err.println(format(Locale.US, "%s: recommended threshold %s",
+                    phrase, result.getRecommendedThreshold(phrase)));
+
+        if (null != output) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+            try {
+                result.writeKeywordFile(writer);
+            } finally {
+                writer.close();
+            }
+        }
+    }
+}